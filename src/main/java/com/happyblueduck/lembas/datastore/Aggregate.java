@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a count, and optionally a sum, of the entities of a class grouped by a property.
+ * The {@code EntityManager} keeps it up to date on every write in sharded aggregate entities,
+ * so reading it does not load the entities. Use {@link Aggregates} to declare several.
+ *
+ * <pre>
+ * {@literal @}Aggregate(name = "byStatus", groupBy = "_status")
+ * public class Order extends LembasEntity { ... }
+ *
+ *     long active = orderManager.count("byStatus", LembasEntity.ACTIVE);
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Aggregate {
+
+    /** name used to read the aggregate */
+    String name();
+
+    /** property the entities are grouped by */
+    String groupBy();
+
+    /** numeric property summed per group, empty to only count */
+    String sum() default "";
+
+    /** keep a separate aggregate per parent entity */
+    boolean perAncestor() default false;
+
+    /** number of shards the writes are spread over, more shards take more concurrent writes */
+    int shards() default 10;
+}
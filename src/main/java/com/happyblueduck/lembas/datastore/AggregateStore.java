@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Maintains the {@link Aggregate}s declared on an entity class. Every write adds the
+ * difference between the stored and the new values of an entity to one randomly chosen
+ * shard of each affected group, picked when the delta is collected. Reading a group sums
+ * its shards with one batch get, and caches the totals until the next write to the group.
+ */
+public class AggregateStore {
+    private static final Logger logger =
+            Logger.getLogger(AggregateStore.class.getCanonicalName());
+
+    /** kind of the shard entities */
+    public static final String KIND = "_LembasAggregate";
+
+    private static final String KIND_PROPERTY = "kind";
+    private static final String COUNT_PROPERTY = "count";
+    private static final String SUM_PROPERTY = "sum";
+
+    private static final int SHARD_UPDATE_ATTEMPTS = 3;
+    /** datastore limit for batch puts and deletes */
+    private static final int BATCH_SIZE = 500;
+    private static final long CACHE_NO_READD_MILLIS = 2000;
+    private static final Expiration CACHE_EXPIRATION = Expiration.byDeltaSeconds(10 * 60);
+
+    private static final ConcurrentHashMap<Class<?>, AggregateStore> stores = new ConcurrentHashMap<>();
+
+    private final String kind;
+    private final LinkedHashMap<String, Aggregate> aggregates = new LinkedHashMap<>();
+
+    /**
+     * @param entityClass the entity class
+     * @return the aggregates of the class, empty if none are declared
+     */
+    public static AggregateStore of(Class<? extends LembasEntity> entityClass) {
+        AggregateStore store = stores.get(entityClass);
+        if ( store == null){
+            stores.putIfAbsent(entityClass, new AggregateStore(entityClass));
+            store = stores.get(entityClass);
+        }
+        return store;
+    }
+
+    private AggregateStore(Class<?> entityClass) {
+        this.kind = entityClass.getSimpleName();
+
+        ArrayList<Aggregate> declared = new ArrayList<>();
+        Aggregate single = entityClass.getAnnotation(Aggregate.class);
+        if ( single != null){
+            declared.add(single);
+        }
+        Aggregates several = entityClass.getAnnotation(Aggregates.class);
+        if ( several != null){
+            Collections.addAll(declared, several.value());
+        }
+
+        for ( Aggregate aggregate : declared){
+            Utils.assertTrue(aggregate.shards() > 0, "aggregate " + aggregate.name() + " needs at least one shard");
+            Utils.assertTrue(!aggregates.containsKey(aggregate.name()),
+                    "duplicate aggregate " + aggregate.name() + " on " + kind);
+            aggregates.put(aggregate.name(), aggregate);
+        }
+    }
+
+    public boolean isEmpty() {
+        return aggregates.isEmpty();
+    }
+
+    public MemcacheService getCacheService() {
+        return MemcacheServiceFactory.getMemcacheService(KIND);
+    }
+
+    /**
+     * Adds the change from {@code before} to {@code after} to the pending deltas.
+     *
+     * @param deltas pending deltas by group
+     * @param before the stored entity, null if it is created
+     * @param after the written entity, null if it is deleted
+     */
+    public void collect(Map<String, Delta> deltas, Entity before, Entity after) {
+        for ( Aggregate aggregate : aggregates.values()){
+            if ( before != null){
+                add(deltas, aggregate, before, -1);
+            }
+            if ( after != null){
+                add(deltas, aggregate, after, 1);
+            }
+        }
+    }
+
+    private void add(Map<String, Delta> deltas, Aggregate aggregate, Entity entity, int sign) {
+        Key parent = aggregate.perAncestor() ? entity.getParent() : null;
+        String group = groupKey(aggregate, entity.getProperty(aggregate.groupBy()), parent);
+
+        Delta delta = deltas.get(group);
+        if ( delta == null){
+            delta = new Delta(aggregate.shards());
+            deltas.put(group, delta);
+        }
+        delta.count += sign;
+        if ( !aggregate.sum().isEmpty()){
+            Object value = entity.getProperty(aggregate.sum());
+            if ( value instanceof Number){
+                delta.sum += sign * ((Number) value).doubleValue();
+            }
+        }
+    }
+
+    /**
+     * @param deltas pending deltas by group
+     * @return keys of the shards {@code apply} will write, e.g. to count the entity groups
+     *         of a cross group transaction
+     */
+    public Set<Key> shardKeys(Map<String, Delta> deltas) {
+        HashSet<Key> keys = new HashSet<>();
+        for ( Map.Entry<String, Delta> entry : deltas.entrySet()){
+            if ( !entry.getValue().isEmpty()){
+                keys.add(shardKey(entry.getKey(), entry.getValue().shard));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the change from {@code before} to {@code after},
+     * see {@link #apply(DatastoreService, Transaction, Map)}.
+     */
+    public Set<String> apply(DatastoreService ds, Transaction txn, Entity before, Entity after) {
+        HashMap<String, Delta> deltas = new HashMap<>();
+        collect(deltas, before, after);
+        return apply(ds, txn, deltas);
+    }
+
+    /**
+     * Adds the deltas to the chosen shard of each group. With a transaction the shards are
+     * updated in it, which has to be a cross group one; without, every shard is updated in
+     * its own transaction.
+     *
+     * @param ds the com.happyblueduck.lembas.datastore service object.
+     * @param txn transaction to update the shards in, null to update them on their own
+     * @param deltas deltas by group
+     * @return the changed groups, to be passed to {@link #invalidate(Collection)} after commit
+     */
+    public Set<String> apply(DatastoreService ds, Transaction txn, Map<String, Delta> deltas) {
+        HashSet<String> changed = new HashSet<>();
+        for ( Map.Entry<String, Delta> entry : deltas.entrySet()){
+            Delta delta = entry.getValue();
+            if ( delta.isEmpty()){
+                continue;
+            }
+            if ( txn != null){
+                addToShard(ds, txn, entry.getKey(), delta);
+            } else {
+                addToShard(ds, entry.getKey(), delta);
+            }
+            changed.add(entry.getKey());
+        }
+        return changed;
+    }
+
+    private void addToShard(DatastoreService ds, Transaction txn, String group, Delta delta) {
+        Key key = shardKey(group, delta.shard);
+        Entity shard;
+        try {
+            shard = ds.get(txn, key);
+        } catch (EntityNotFoundException e) {
+            shard = newShard(key);
+        }
+        shard.setUnindexedProperty(COUNT_PROPERTY, getCount(shard) + delta.count);
+        shard.setUnindexedProperty(SUM_PROPERTY, getSum(shard) + delta.sum);
+        ds.put(txn, shard);
+    }
+
+    private void addToShard(DatastoreService ds, String group, Delta delta) {
+        for ( int attempt = 1; ; attempt++){
+            Transaction txn = ds.beginTransaction();
+            try {
+                addToShard(ds, txn, group, delta);
+                txn.commit();
+                return;
+            } catch (ConcurrentModificationException e) {
+                if ( attempt >= SHARD_UPDATE_ATTEMPTS){
+                    logger.error("Failed to update aggregate " + group + ":" + e.getMessage());
+                    throw e;
+                }
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    private Entity newShard(Key key) {
+        Entity shard = new Entity(key);
+        shard.setProperty(KIND_PROPERTY, kind);
+        return shard;
+    }
+
+    /**
+     * Drops the cached totals of changed groups, and keeps stale totals from being
+     * re-added for a short while.
+     *
+     * @param groups groups returned by {@code apply}
+     */
+    public void invalidate(Collection<String> groups) {
+        if ( !groups.isEmpty()){
+            getCacheService().deleteAll(groups, CACHE_NO_READD_MILLIS);
+        }
+    }
+
+    /**
+     * Reads the totals of a group.
+     *
+     * @param name aggregate name
+     * @param groupValue value of the grouping property
+     * @param parent the parent key for aggregates kept per ancestor, otherwise null
+     * @return count and sum of the group
+     */
+    public Total read(String name, Object groupValue, Key parent) {
+        Aggregate aggregate = aggregates.get(name);
+        Utils.assertTrue(aggregate != null, "no aggregate " + name + " on " + kind);
+        Utils.assertTrue(!aggregate.perAncestor() || parent != null, "aggregate " + name + " needs a parent");
+
+        String group = groupKey(aggregate, groupValue, parent);
+        MemcacheService cache = getCacheService();
+        Object cached = cache.get(group);
+        if ( cached instanceof Total){
+            return (Total) cached;
+        }
+
+        ArrayList<Key> keys = new ArrayList<>(aggregate.shards());
+        for ( int i = 0; i < aggregate.shards(); i++){
+            keys.add(shardKey(group, i));
+        }
+
+        long count = 0;
+        double sum = 0;
+        for ( Entity shard : DatastoreServiceFactory.getDatastoreService().get(keys).values()){
+            count += getCount(shard);
+            sum += getSum(shard);
+        }
+
+        Total total = new Total(count, sum);
+        cache.put(group, total, CACHE_EXPIRATION, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        return total;
+    }
+
+    /**
+     * Recounts every aggregate of the kind from the stored entities, replacing all shards.
+     * Needed once when an aggregate is added to a kind that already has entities. Writes
+     * to the kind during the rebuild may be lost from the totals.
+     *
+     * @param ds the com.happyblueduck.lembas.datastore service object.
+     * @param pageSize entities read per page
+     */
+    public void rebuild(DatastoreService ds, int pageSize) {
+        HashMap<String, Delta> totals = new HashMap<>();
+        Cursor cursor = null;
+        while ( true){
+            FetchOptions options = FetchOptions.Builder.withLimit(pageSize);
+            if ( cursor != null){
+                options.startCursor(cursor);
+            }
+            QueryResultList<Entity> page = ds.prepare(new Query(kind)).asQueryResultList(options);
+            for ( Entity entity : page){
+                collect(totals, null, entity);
+            }
+            if ( page.size() < pageSize){
+                break;
+            }
+            cursor = page.getCursor();
+        }
+
+        Query shards = new Query(KIND).setKeysOnly().setFilter(
+                new Query.FilterPredicate(KIND_PROPERTY, Query.FilterOperator.EQUAL, kind));
+        ArrayList<Key> stale = new ArrayList<>();
+        HashSet<String> groups = new HashSet<>(totals.keySet());
+        for ( Entity shard : ds.prepare(shards).asIterable()){
+            stale.add(shard.getKey());
+            String name = shard.getKey().getName();
+            groups.add(name.substring(0, name.lastIndexOf('#')));
+        }
+        for ( List<Key> batch : Lists.partition(stale, BATCH_SIZE)){
+            ds.delete(batch);
+        }
+
+        ArrayList<Entity> fresh = new ArrayList<>(totals.size());
+        for ( Map.Entry<String, Delta> entry : totals.entrySet()){
+            Entity shard = newShard(shardKey(entry.getKey(), 0));
+            shard.setUnindexedProperty(COUNT_PROPERTY, entry.getValue().count);
+            shard.setUnindexedProperty(SUM_PROPERTY, entry.getValue().sum);
+            fresh.add(shard);
+        }
+        for ( List<Entity> batch : Lists.partition(fresh, BATCH_SIZE)){
+            ds.put(batch);
+        }
+
+        invalidate(groups);
+        logger.info("rebuilt " + totals.size() + " aggregate groups of " + kind);
+    }
+
+    // e.g. Order:byStatus:1 or Order:byStatus:1:<parent key>
+    private String groupKey(Aggregate aggregate, Object groupValue, Key parent) {
+        StringBuilder sb = new StringBuilder(kind).append(':').append(aggregate.name())
+                .append(':').append(normalize(groupValue));
+        if ( aggregate.perAncestor()){
+            sb.append(':').append(parent == null ? "" : KeyFactory.keyToString(parent));
+        }
+        return sb.toString();
+    }
+
+    // stored values and read arguments have to produce the same group key
+    private static String normalize(Object value) {
+        if ( value instanceof Enum){
+            return String.valueOf(((Enum) value).ordinal());
+        }
+        if ( value instanceof Integer || value instanceof Short || value instanceof Byte){
+            return String.valueOf(((Number) value).longValue());
+        }
+        return String.valueOf(value);
+    }
+
+    private static Key shardKey(String group, int shard) {
+        return KeyFactory.createKey(KIND, group + "#" + shard);
+    }
+
+    private static long getCount(Entity shard) {
+        Object value = shard.getProperty(COUNT_PROPERTY);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double getSum(Entity shard) {
+        Object value = shard.getProperty(SUM_PROPERTY);
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     * Pending change of one group.
+     */
+    public static class Delta {
+        final int shard;
+        long count;
+        double sum;
+
+        Delta(int shards) {
+            this.shard = ThreadLocalRandom.current().nextInt(shards);
+        }
+
+        boolean isEmpty() {
+            return count == 0 && sum == 0;
+        }
+    }
+
+    /**
+     * Totals of one group.
+     */
+    public static class Total implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final long count;
+        public final double sum;
+
+        public Total(long count, double sum) {
+            this.count = count;
+            this.sum = sum;
+        }
+    }
+}
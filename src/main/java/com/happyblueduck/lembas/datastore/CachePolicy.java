@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+/**
+ * How entities read from the datastore populate memcache. Writes through
+ * {@code EntityManager.upsertEntity} always update the cache, regardless of the policy.
+ */
+public enum CachePolicy {
+
+    /** do not cache what was read, for one-off scans and exports */
+    NONE,
+
+    /** add what was read to the cache before returning it */
+    WRITE_THROUGH,
+
+    /** add what was read to the cache with async batched putAll calls */
+    ASYNC_BACKFILL
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+
+/**
+ * Preloads configured kinds, ancestors and keys into memcache before an instance takes
+ * traffic. Keys are loaded with batched multi-gets and queries page by page with cursors,
+ * on a limited number of threads and within a time budget.
+ *
+ * The warm-up is usually declared on the {@code EntityManager}s, and run for one manager
+ * with {@code EntityManager.warmUp} or for several sharing one budget here:
+ *
+ * <pre>
+ *     flagManager.warmUpKind();
+ *     tenantConfigManager.warmUpAncestor(tenantKey);
+ *
+ *     // in the /_ah/warmup handler, the instance gets traffic once it returns
+ *     new CacheWarmer(4, 10 * 1000)
+ *             .add(flagManager)
+ *             .add(tenantConfigManager)
+ *             .run();
+ * </pre>
+ */
+public class CacheWarmer {
+    private static final Logger logger =
+            Logger.getLogger(CacheWarmer.class.getCanonicalName());
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final int concurrency;
+    private final long budgetMillis;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ThreadFactory threadFactory;
+
+    private final ArrayList<Callable<Integer>> tasks = new ArrayList<>();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile boolean completed = false;
+    private volatile long deadline;
+
+    /**
+     * @param concurrency maximum number of batches loaded at once
+     * @param budgetMillis time after which unfinished batches are abandoned
+     */
+    public CacheWarmer(int concurrency, long budgetMillis) {
+        Utils.assertTrue(concurrency > 0, "concurrency must be positive");
+        this.concurrency = concurrency;
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * @param batchSize keys per multi-get and entities per query page
+     */
+    public CacheWarmer setBatchSize(int batchSize) {
+        Utils.assertTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Uses the given thread factory instead of request threads, e.g. background threads
+     * to warm up from a backend without blocking a request.
+     */
+    public CacheWarmer setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Preloads the warm-up declared on the manager.
+     */
+    public <T extends LembasEntity> CacheWarmer add(EntityManager<T> manager) {
+        for ( Query query : manager.warmUpQueries){
+            warmQuery(manager, query);
+        }
+        if ( !manager.warmUpKeys.isEmpty()){
+            warmKeys(manager, manager.warmUpKeys);
+        }
+        return this;
+    }
+
+    /**
+     * Preloads entities by key, in batched multi-gets.
+     */
+    public <T extends LembasEntity> CacheWarmer warmKeys(final EntityManager<T> manager, Collection<Key> keys) {
+        for ( final List<Key> batch : Lists.partition(new ArrayList<>(keys), batchSize)){
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return load(manager, getDatastoreService().get(batch).values());
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Preloads every entity of the kind.
+     */
+    public <T extends LembasEntity> CacheWarmer warmKind(EntityManager<T> manager) {
+        return warmQuery(manager, manager.query());
+    }
+
+    /**
+     * Preloads every entity of the kind under the ancestor.
+     */
+    public <T extends LembasEntity> CacheWarmer warmAncestor(EntityManager<T> manager, Key ancestor) {
+        return warmQuery(manager, manager.query().setAncestor(ancestor));
+    }
+
+    /**
+     * Preloads the results of a query, page by page.
+     */
+    public <T extends LembasEntity> CacheWarmer warmQuery(final EntityManager<T> manager, final Query query) {
+        tasks.add(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int count = 0;
+                Cursor cursor = null;
+                while ( System.currentTimeMillis() < deadline){
+                    FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+                    if ( cursor != null){
+                        options.startCursor(cursor);
+                    }
+                    QueryResultList<Entity> page = getDatastoreService().prepare(query).asQueryResultList(options);
+                    count += load(manager, page);
+                    if ( page.size() < batchSize){
+                        break;
+                    }
+                    cursor = page.getCursor();
+                }
+                return count;
+            }
+        });
+        return this;
+    }
+
+    private <T extends LembasEntity> int load(EntityManager<T> manager, Collection<Entity> entities) {
+        ArrayList<T> hydrated = new ArrayList<>(entities.size());
+        for ( Entity entity : entities){
+            hydrated.add(manager.hydrate(entity));
+        }
+        manager.backfillCache(hydrated, CachePolicy.WRITE_THROUGH);
+
+        loaded.addAndGet(hydrated.size());
+        return hydrated.size();
+    }
+
+    /**
+     * Runs the warm-up and waits for it to finish or the budget to run out. Readiness is
+     * signalled either way, a partly warm cache is still better than a cold one.
+     *
+     * @return true if every batch was loaded within the budget
+     */
+    public boolean run() {
+        long start = System.currentTimeMillis();
+        deadline = start + budgetMillis;
+
+        ThreadFactory factory = threadFactory != null ? threadFactory : ThreadManager.currentRequestThreadFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(concurrency, tasks.size())), factory);
+        try {
+            List<Future<Integer>> results = executor.invokeAll(tasks, budgetMillis, TimeUnit.MILLISECONDS);
+
+            int failed = 0;
+            for ( Future<Integer> result : results){
+                try {
+                    result.get();
+                } catch (CancellationException | ExecutionException e) {
+                    failed++;
+                }
+            }
+            completed = failed == 0 && System.currentTimeMillis() <= deadline;
+            logger.info("cache warm-up loaded " + loaded.get() + " entities in "
+                    + (System.currentTimeMillis() - start) + "ms, " + failed + " of " + results.size() + " batches unfinished");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            ready.countDown();
+        }
+        return completed;
+    }
+
+    /**
+     * @return true once {@link #run()} has finished
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * @return true if the last run loaded every batch within the budget
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Waits for a {@link #run()} on another thread to finish.
+     *
+     * @return true if the warm-up finished within the timeout
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    /**
+     * @return entities loaded so far
+     */
+    public int getLoaded() {
+        return loaded.get();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per kind counters of transactional updates on this instance, to see how often
+ * {@code EntityManager.update} runs into contention.
+ */
+public class ContentionStats {
+
+    private static final ConcurrentHashMap<String, ContentionStats> stats = new ConcurrentHashMap<>();
+
+    private final String kind;
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    private ContentionStats(String kind) {
+        this.kind = kind;
+    }
+
+    /**
+     * @param kind entity kind
+     * @return the counters of the kind
+     */
+    public static ContentionStats forKind(String kind) {
+        ContentionStats s = stats.get(kind);
+        if ( s == null){
+            stats.putIfAbsent(kind, new ContentionStats(kind));
+            s = stats.get(kind);
+        }
+        return s;
+    }
+
+    /**
+     * @return counters of every kind updated so far
+     */
+    public static Map<String, ContentionStats> all() {
+        return new HashMap<String, ContentionStats>(stats);
+    }
+
+    void attempt() {
+        attempts.incrementAndGet();
+    }
+
+    void commit() {
+        commits.incrementAndGet();
+    }
+
+    void conflict() {
+        conflicts.incrementAndGet();
+    }
+
+    void exhaust() {
+        exhausted.incrementAndGet();
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /** transactions started, including retries */
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /** attempts that failed with a concurrent modification */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /** updates that gave up after running out of retries */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return share of attempts that failed with a concurrent modification
+     */
+    public double getConflictRate() {
+        long a = attempts.get();
+        return a == 0 ? 0 : (double) conflicts.get() / a;
+    }
+
+    @Override
+    public String toString() {
+        return kind + ": attempts=" + getAttempts() + " commits=" + getCommits()
+                + " conflicts=" + getConflicts() + " exhausted=" + getExhausted();
+    }
+}
@@ -13,13 +13,23 @@
  */
 package com.happyblueduck.lembas.datastore;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import org.apache.log4j.Logger;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
 
@@ -38,10 +48,161 @@ public class EntityManager<T extends LembasEntity> {
 
     //public boolean useMemcache = true;
 
+    /** how many times a cache write retries a lost compare-and-set before giving up */
+    protected static final int CACHE_CAS_ATTEMPTS = 3;
+
+    /** window in which a removed key cannot be re-added by a stale backfill */
+    protected static final long CACHE_NO_READD_MILLIS = 2000;
+
+    /** memcache refuses values over 1MB, leave room for the key and serialization overhead */
+    public static final int MAX_CACHE_VALUE_SIZE = 900 * 1024;
+
+    /** largest number of entities backfilled with a single putAll */
+    protected static final int BACKFILL_BATCH_SIZE = 500;
+
+    protected Expiration cacheExpiration = null;
+
+    protected int updateMaxAttempts = 5;
+    protected long updateBaseBackoffMillis = 20;
+    protected long updateMaxBackoffMillis = 1000;
+    /** total time an update may spend retrying */
+    protected long updateRetryBudgetMillis = 5000;
+
+    protected CachePolicy getCachePolicy = CachePolicy.WRITE_THROUGH;
+    protected CachePolicy queryCachePolicy = CachePolicy.ASYNC_BACKFILL;
+
+    /** result pages larger than this are hydrated in parallel chunks, 0 keeps hydration on the caller thread */
+    protected int hydrationChunkSize = 0;
+    protected int hydrationThreads = 4;
+    protected ExecutorService hydrationExecutor;
+
+    /** keep the datastore entity and read fields on first access, see LembasEntity.setEntityLazily */
+    protected boolean lazyHydration = false;
+
+    /** queries and keys preloaded by {@link #warmUp(int, long)}, see CacheWarmer */
+    protected final ArrayList<Query> warmUpQueries = new ArrayList<>();
+    protected final LinkedHashSet<Key> warmUpKeys = new LinkedHashSet<>();
+
     public EntityManager(Class<T> entityClass) {
         this.entityClass = entityClass;
     }
 
+    /**
+     * Enables parallel hydration of query results. Pages with more than {@code chunkSize}
+     * entities are split into chunks, each chunk is hydrated on its own request thread and
+     * backfilled to memcache in batches according to the cache policy.
+     *
+     * @param chunkSize entities per chunk, 0 disables parallel hydration
+     * @param threads maximum number of threads used for a single query
+     */
+    public void setParallelHydration(int chunkSize, int threads) {
+        Utils.assertTrue(chunkSize >= 0, "chunkSize cannot be negative");
+        Utils.assertTrue(threads > 0, "threads must be positive");
+        this.hydrationChunkSize = chunkSize;
+        this.hydrationThreads = threads;
+    }
+
+    /**
+     * Sets how {@link #getEntity(Key)} populates the cache on a miss.
+     *
+     * @param policy cache population policy
+     */
+    public void setGetCachePolicy(CachePolicy policy) {
+        Utils.assertTrue(policy != null, "policy cannot be null");
+        this.getCachePolicy = policy;
+    }
+
+    /**
+     * Sets how queries populate the cache, unless a policy is given for the call.
+     *
+     * @param policy cache population policy
+     */
+    public void setQueryCachePolicy(CachePolicy policy) {
+        Utils.assertTrue(policy != null, "policy cannot be null");
+        this.queryCachePolicy = policy;
+    }
+
+    /**
+     * Sets the expiration of cached entities, null keeps them until evicted.
+     *
+     * @param expiration expiration for cache writes
+     */
+    public void setCacheExpiration(Expiration expiration) {
+        this.cacheExpiration = expiration;
+    }
+
+    /**
+     * Enables hot key tracking on {@link #getEntity(Key)} for this kind, on every manager
+     * of the kind in this instance. Hot keys are served from a short lived local replica.
+     *
+     * @return the tracker, to inspect hot keys
+     */
+    public HotKeyTracker enableHotKeyTracking() {
+        return HotKeyTracker.enable(getKind());
+    }
+
+    /**
+     * Loads entities lazily: only the fields a caller reads are converted. Best combined
+     * with {@link CachePolicy#NONE} for large queries, caching an entity reads all its fields.
+     *
+     * @param lazyHydration true to load entities lazily
+     */
+    public void setLazyHydration(boolean lazyHydration) {
+        this.lazyHydration = lazyHydration;
+    }
+
+    /**
+     * Declares every entity of the kind to be preloaded by {@link #warmUp(int, long)}.
+     */
+    public EntityManager<T> warmUpKind() {
+        return warmUpQuery(query());
+    }
+
+    /**
+     * Declares the entities of the kind under the ancestor to be preloaded.
+     */
+    public EntityManager<T> warmUpAncestor(Key ancestor) {
+        return warmUpQuery(query().setAncestor(ancestor));
+    }
+
+    /**
+     * Declares the results of a query to be preloaded.
+     */
+    public EntityManager<T> warmUpQuery(Query query) {
+        warmUpQueries.add(query);
+        return this;
+    }
+
+    /**
+     * Declares entities to be preloaded by key.
+     */
+    public EntityManager<T> warmUpKeys(Collection<Key> keys) {
+        warmUpKeys.addAll(keys);
+        return this;
+    }
+
+    /**
+     * Preloads the declared warm-up into memcache, see {@link CacheWarmer}. Warm several
+     * managers at once with {@code CacheWarmer.add}.
+     *
+     * @param concurrency maximum number of batches loaded at once
+     * @param budgetMillis time after which unfinished batches are abandoned
+     * @return true if every batch was loaded within the budget
+     */
+    public boolean warmUp(int concurrency, long budgetMillis) {
+        return new CacheWarmer(concurrency, budgetMillis).add(this).run();
+    }
+
+    /**
+     * Uses the given executor for parallel hydration instead of creating request scoped
+     * threads for every query. The executor is not shut down by this manager.
+     *
+     * @param executor executor to run hydration chunks on, null to use request threads
+     */
+    public void setHydrationExecutor(ExecutorService executor) {
+        this.hydrationExecutor = executor;
+    }
+
     /**
      * Delete entity from store
      * @param entityKey
@@ -52,26 +213,49 @@ public class EntityManager<T extends LembasEntity> {
     }
 
 
-    public T deleteEntity(T handsomeEntity) {
+    public T deleteEntity(final T handsomeEntity) {
         Utils.assertTrue(handsomeEntity != null, "entity cannot be null");
-        LembasEntity entityNoSql = downCastEntity(handsomeEntity);
-        DatastoreService ds = getDatastoreService();
+        final LembasEntity entityNoSql = downCastEntity(handsomeEntity);
+        final AggregateStore aggregates = getAggregates();
 
-        Transaction txn = ds.beginTransaction();
         try {
-            if (checkEntityForDelete(ds, entityNoSql)) {
-                ds.delete(entityNoSql.getKey());
-                txn.commit();
-                logger.info("entity deleted.");
-                removeFromCache(handsomeEntity.objectKey);
+            boolean deleted = inTransaction(entityNoSql.getKey(), new TransactionalWork<Boolean>() {
+                Set<String> changedGroups = Collections.emptySet();
+
+                @Override
+                Boolean run(DatastoreService ds, Transaction txn) {
+                    if ( !checkEntityForDelete(ds, entityNoSql)){
+                        return false;
+                    }
+                    if ( !aggregates.isEmpty()){
+                        Entity stored;
+                        try {
+                            stored = ds.get(txn, entityNoSql.getKey());
+                        } catch (EntityNotFoundException e) {
+                            return false;
+                        }
+                        changedGroups = aggregates.apply(ds, txn, stored, null);
+                        ds.delete(txn, entityNoSql.getKey());
+                    } else {
+                        ds.delete(entityNoSql.getKey());
+                    }
+                    return true;
+                }
+
+                @Override
+                void afterCommit(Boolean deleted) {
+                    if ( deleted){
+                        logger.info("entity deleted.");
+                        removeFromCache(handsomeEntity.objectKey);
+                        aggregates.invalidate(changedGroups);
+                    }
+                }
+            });
+            if ( deleted){
                 return handsomeEntity;
             }
         } catch (Exception e) {
             logger.error("Failed to delete entity from com.happyblueduck.lembas.datastore:" + e.getMessage());
-        } finally {
-            if (txn.isActive()) {
-                txn.rollback();
-            }
         }
         return null;
     }
@@ -96,22 +280,273 @@ public class EntityManager<T extends LembasEntity> {
 
     public void initEntity(T handsomeEntity){
         DatastoreService ds = getDatastoreService();
-        Transaction txn = ds.beginTransaction();
+        Entity entity = getDatastoreEntity(ds, KeyFactory.stringToKey(handsomeEntity.objectKey));
+        handsomeEntity.entity = entity;
+    }
 
-        try {
+    /**
+     * Sets the retry behaviour of {@link #update(Key, Function)}, and of upserts and
+     * deletes of kinds that declare aggregates.
+     *
+     * @param maxAttempts transactions tried before giving up
+     * @param baseBackoffMillis backoff before the first retry, doubled on every retry
+     * @param maxBackoffMillis upper bound of a single backoff
+     * @param retryBudgetMillis total time an update may spend retrying
+     */
+    public void setUpdateRetry(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, long retryBudgetMillis) {
+        Utils.assertTrue(maxAttempts > 0, "maxAttempts must be positive");
+        this.updateMaxAttempts = maxAttempts;
+        this.updateBaseBackoffMillis = baseBackoffMillis;
+        this.updateMaxBackoffMillis = maxBackoffMillis;
+        this.updateRetryBudgetMillis = retryBudgetMillis;
+    }
 
-            Entity entity = getDatastoreEntity(ds, KeyFactory.stringToKey(handsomeEntity.objectKey));
-            handsomeEntity.entity = entity;
+    public T update(String objectKey, Function<T, T> mutation) {
+        return update(getKey(objectKey), mutation);
+    }
+
+    /**
+     * Atomically reads, modifies and writes an entity in a transaction. On contention the
+     * transaction is retried with jittered exponential backoff until it commits, the
+     * attempts run out or the retry budget is spent. The cache is only updated after commit.
+     *
+     * The mutation may run more than once and should have no side effects. It returns the
+     * entity to write, or null to leave the entity untouched.
+     *
+     * @param key the entity key.
+     * @param mutation changes the current entity.
+     * @return the written entity; the unchanged entity if the mutation returned null;
+     *         null if the key could not be found.
+     * @throws ConcurrentModificationException if the update kept conflicting.
+     */
+    public T update(final Key key, final Function<T, T> mutation) {
+        Utils.assertTrue(mutation != null, "mutation cannot be null");
+        final AggregateStore aggregates = getAggregates();
+
+        return inTransaction(key, new TransactionalWork<T>() {
+            Set<String> changedGroups = null;
+
+            @Override
+            T run(DatastoreService ds, Transaction txn) {
+                changedGroups = null;
+                Entity stored;
+                try {
+                    stored = ds.get(txn, key);
+                } catch (EntityNotFoundException e) {
+                    return null;
+                }
+                // hydration shares the entity, keep the stored values for the aggregates
+                Entity before = aggregates.isEmpty() ? null : stored.clone();
+
+                T current = hydrate(stored);
+                T updated = mutation.apply(current);
+                if ( updated == null){
+                    return current;
+                }
+                Utils.assertTrue(key.equals(updated.getKey()), "mutation cannot change the entity key");
+
+                Entity entity = prepareForWrite(updated);
+                ds.put(txn, entity);
+                changedGroups = aggregates.isEmpty()
+                        ? Collections.<String>emptySet()
+                        : aggregates.apply(ds, txn, before, entity);
+                return updated;
+            }
+
+            @Override
+            void afterCommit(T updated) {
+                // null when nothing was written
+                if ( changedGroups != null){
+                    storeEntityToCache(updated);
+                    aggregates.invalidate(changedGroups);
+                }
+            }
+        });
+    }
+
+    /**
+     * Work done in a transaction by {@link #inTransaction(Key, TransactionalWork)}. It may
+     * run more than once, and should keep side effects for {@code afterCommit}.
+     */
+    abstract static class TransactionalWork<R> {
+
+        abstract R run(DatastoreService ds, Transaction txn);
+
+        void afterCommit(R result) {
         }
-        finally {
-            if (txn.isActive()) {
-                txn.rollback();
+    }
+
+    /**
+     * Runs the work in a transaction, cross group if the kind declares aggregates, and
+     * commits it. On contention the transaction is rolled back and retried with jittered
+     * exponential backoff until it commits, the attempts run out or the retry budget is
+     * spent. Every attempt is counted in the {@link ContentionStats} of the kind.
+     *
+     * @param key the key the work is about, for logging.
+     * @param work the transactional work.
+     * @return the result of the committed run.
+     * @throws ConcurrentModificationException if the transaction kept conflicting.
+     */
+    <R> R inTransaction(Key key, TransactionalWork<R> work) {
+        ContentionStats stats = ContentionStats.forKind(getKind());
+        DatastoreService ds = getDatastoreService();
+        TransactionOptions options = getAggregates().isEmpty()
+                ? TransactionOptions.Builder.withDefaults()
+                : TransactionOptions.Builder.withXG(true);
+        long deadline = System.currentTimeMillis() + updateRetryBudgetMillis;
+
+        for ( int attempt = 1; ; attempt++){
+            stats.attempt();
+            Transaction txn = ds.beginTransaction(options);
+            try {
+                R result = work.run(ds, txn);
+                txn.commit();
+                stats.commit();
+                work.afterCommit(result);
+                return result;
+
+            } catch (ConcurrentModificationException e) {
+                stats.conflict();
+                // release the transaction before waiting
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+                long backoff = backoff(attempt);
+                if ( attempt >= updateMaxAttempts || System.currentTimeMillis() + backoff > deadline){
+                    stats.exhaust();
+                    logger.error("Giving up transaction on " + key + " after " + attempt + " attempts");
+                    throw e;
+                }
+                sleep(backoff);
+            } finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
             }
         }
+    }
+
+    /**
+     * @return the aggregates declared on the entity class
+     */
+    public AggregateStore getAggregates() {
+        return AggregateStore.of(entityClass);
+    }
 
+    /**
+     * Reads the number of entities in a group of a declared {@link Aggregate}.
+     *
+     * @param aggregate aggregate name
+     * @param groupValue value of the grouping property
+     * @return the number of entities
+     */
+    public long count(String aggregate, Object groupValue) {
+        return getAggregates().read(aggregate, groupValue, null).count;
+    }
+
+    public long count(String aggregate, Object groupValue, LembasEntity parent) {
+        return getAggregates().read(aggregate, groupValue, parent.getKey()).count;
+    }
+
+    /**
+     * Reads the sum of a group of a declared {@link Aggregate}.
+     *
+     * @param aggregate aggregate name
+     * @param groupValue value of the grouping property
+     * @return the sum of the summed property
+     */
+    public double sum(String aggregate, Object groupValue) {
+        return getAggregates().read(aggregate, groupValue, null).sum;
+    }
+
+    public double sum(String aggregate, Object groupValue, LembasEntity parent) {
+        return getAggregates().read(aggregate, groupValue, parent.getKey()).sum;
+    }
+
+    /**
+     * Recounts the declared aggregates from the stored entities.
+     */
+    public void rebuildAggregates() {
+        getAggregates().rebuild(getDatastoreService(), BACKFILL_BATCH_SIZE);
+    }
+
+    /**
+     * @return counters of transactional updates of this kind
+     */
+    public ContentionStats getContentionStats() {
+        return ContentionStats.forKind(getKind());
+    }
+
+    // full jitter: uniform between zero and the exponential bound
+    private long backoff(int attempt) {
+        long bound = updateBaseBackoffMillis << Math.min(attempt - 1, 20);
+        bound = Math.min(bound, updateMaxBackoffMillis);
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while retrying transaction", e);
+        }
     }
 
     public T upsertEntity(T handsomeEntity) {
+        SlowOperationLog.Trace trace = SlowOperationLog.start("upsert", getKind());
+        long start = trace == null ? 0 : System.nanoTime();
+
+        final Entity entity = prepareForWrite(handsomeEntity);
+        if ( trace != null){
+            trace.hydration(System.nanoTime() - start);
+            start = System.nanoTime();
+        }
+
+        DatastoreService ds = getDatastoreService();
+        final AggregateStore aggregates = getAggregates();
+
+        if ( aggregates.isEmpty()){
+            ds.put(entity);
+        } else {
+            // the stored values are needed to move the entity between aggregate groups
+            Set<String> changedGroups = inTransaction(entity.getKey(), new TransactionalWork<Set<String>>() {
+                @Override
+                Set<String> run(DatastoreService ds, Transaction txn) {
+                    Entity stored = null;
+                    try {
+                        stored = ds.get(txn, entity.getKey());
+                    } catch (EntityNotFoundException e) {
+                        // new entity
+                    }
+                    ds.put(txn, entity);
+                    return aggregates.apply(ds, txn, stored, entity);
+                }
+            });
+            aggregates.invalidate(changedGroups);
+        }
+
+        if ( trace != null){
+            trace.rpc(System.nanoTime() - start);
+            trace.rows(1);
+            start = System.nanoTime();
+        }
+
+        storeEntityToCache(handsomeEntity);
+        if ( trace != null){
+            trace.cache(System.nanoTime() - start);
+            trace.finish();
+        }
+        return handsomeEntity;
+    }
+
+    /**
+     * Applies the changes on the object to its underlying entity, without writing it.
+     *
+     * @param handsomeEntity the model entity.
+     * @return the com.happyblueduck.lembas.datastore entity ready to be put.
+     */
+    protected Entity prepareForWrite(T handsomeEntity) {
         Utils.assertTrue(handsomeEntity != null, "handsomeEntity cannot be null");
         Utils.assertTrue(handsomeEntity.getClass().getSimpleName().equalsIgnoreCase(getKind()), "cannot insert different class");
 
@@ -119,14 +554,11 @@ public class EntityManager<T extends LembasEntity> {
             initEntity(handsomeEntity);
         }
 
+        handsomeEntity.materialize("_version");
+        handsomeEntity._version++;
         handsomeEntity.copy(handsomeEntity);  // FIXME:apply changes on the object to underlying entity
-        DatastoreService ds = getDatastoreService();
         LembasEntity entityNoSql = downCastEntity(handsomeEntity);
-        Entity entity = entityNoSql.getEntity();
-        ds.put(entity);
-
-        storeEntityToCache(handsomeEntity);
-        return handsomeEntity;
+        return entityNoSql.getEntity();
     }
 
     /**
@@ -151,6 +583,10 @@ public class EntityManager<T extends LembasEntity> {
         return MemcacheServiceFactory.getMemcacheService(getKind());
     }
 
+    public AsyncMemcacheService getAsyncCacheService(){
+        return MemcacheServiceFactory.getAsyncMemcacheService(getKind());
+    }
+
     public T getEntityFromCache(String key) {
         try {
             return (T) getCacheService().get(key);
@@ -161,15 +597,181 @@ public class EntityManager<T extends LembasEntity> {
         }
     }
 
+    /**
+     * Writes a freshly stored entity to the cache, see {@link #storeEntitiesToCache(Collection)}.
+     *
+     * @param entity the entity that was written
+     */
     public void storeEntityToCache(LembasEntity entity){
         if ( entity.objectKey == null){
             return;
         }
-        getCacheService().put(entity.objectKey, entity);
+        storeEntitiesToCache(Collections.singletonList(entity));
+    }
+
+    /**
+     * Writes freshly stored entities to the cache. Cached values are replaced with
+     * compare-and-set and only when their version is lower, so a concurrent backfill
+     * of an older copy can never overwrite them. Versions are not checked by the store
+     * put, so a cached value of the same or a higher version may come from a concurrent
+     * write that lost to this one; it is treated as a conflict. Conflicting keys and keys
+     * whose swap keeps failing are removed and blocked from re-adding for a short while,
+     * so readers reload them from the store.
+     *
+     * @param entities entities that were written
+     */
+    public void storeEntitiesToCache(Collection<? extends LembasEntity> entities){
+        HashMap<String, LembasEntity> pending = new HashMap<>();
+        ArrayList<String> oversized = new ArrayList<>();
+        for ( LembasEntity entity : entities){
+            if ( entity.objectKey == null){
+                continue;
+            }
+            if ( fitsInCache(entity)){
+                pending.put(entity.objectKey, entity);
+            } else {
+                oversized.add(entity.objectKey);
+            }
+        }
+
+        HotKeyTracker tracker = HotKeyTracker.find(getKind());
+        if ( tracker != null){
+            tracker.evictAll(pending.keySet());
+            tracker.evictAll(oversized);
+        }
+
+        MemcacheService cache = getCacheService();
+        if ( !oversized.isEmpty()){
+            // drop older copies that still fit, they would be served stale
+            cache.deleteAll(oversized, CACHE_NO_READD_MILLIS);
+        }
+
+        HashSet<String> conflicts = new HashSet<>();
+        try {
+            for ( int attempt = 0; attempt < CACHE_CAS_ATTEMPTS && !pending.isEmpty(); attempt++){
+                Map<String, MemcacheService.IdentifiableValue> current = cache.getIdentifiables(pending.keySet());
+
+                HashMap<String, MemcacheService.CasValues> swaps = new HashMap<>();
+                HashMap<String, LembasEntity> absent = new HashMap<>();
+                for ( Map.Entry<String, LembasEntity> entry : pending.entrySet()){
+                    MemcacheService.IdentifiableValue cached = current.get(entry.getKey());
+                    if ( cached == null){
+                        absent.put(entry.getKey(), entry.getValue());
+                        continue;
+                    }
+
+                    if ( isOlder(cached.getValue(), entry.getValue())){
+                        swaps.put(entry.getKey(),
+                                new MemcacheService.CasValues(cached, entry.getValue(), cacheExpiration));
+                    } else {
+                        conflicts.add(entry.getKey());
+                    }
+                }
+
+                HashSet<String> lost = new HashSet<>();
+                if ( !swaps.isEmpty()){
+                    lost.addAll(swaps.keySet());
+                    lost.removeAll(cache.putIfUntouched(swaps));
+                }
+                if ( !absent.isEmpty()){
+                    lost.addAll(absent.keySet());
+                    lost.removeAll(cache.putAll(absent, cacheExpiration, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT));
+                }
+                pending.keySet().retainAll(lost);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to update cache:" + e.getMessage());
+        }
+
+        conflicts.addAll(pending.keySet());
+        if ( !conflicts.isEmpty()){
+            cache.deleteAll(conflicts, CACHE_NO_READD_MILLIS);
+        }
+    }
+
+    /**
+     * Checks the entity against the memcache value size limit. Oversized entities are
+     * skipped by the cache instead of failing silently on put. Entities that may be close
+     * to the limit are measured in their serialized form.
+     *
+     * @param entity the entity to cache
+     * @return true if the entity can be cached
+     */
+    protected boolean fitsInCache(LembasEntity entity){
+        int size = entity.estimateSize();
+        if ( entity.getEntity() == null
+                || (size <= MAX_CACHE_VALUE_SIZE && (long) size * LembasEntity.MAX_JSON_EXPANSION > MAX_CACHE_VALUE_SIZE)){
+            size = entity.serializedSize();
+        }
+        if ( size > MAX_CACHE_VALUE_SIZE){
+            logger.warn("entity too large to cache, skipping:" + entity.objectKey + " (" + size + " bytes)");
+            return false;
+        }
+        return true;
+    }
+
+    // values that are not entities are always replaced
+    private static boolean isOlder(Object cached, LembasEntity entity){
+        return !(cached instanceof LembasEntity) || ((LembasEntity) cached)._version < entity._version;
+    }
+
+    /**
+     * Adds an entity that was read from the store to the cache, unless a value is
+     * already cached. A stale read never replaces a cached write.
+     *
+     * @param entity the entity that was read
+     */
+    public void backfillCache(LembasEntity entity){
+        backfillCache(Collections.singletonList(entity), CachePolicy.WRITE_THROUGH);
+    }
+
+    /**
+     * Adds entities that were read from the store to the cache according to the policy,
+     * in putAll batches of at most {@link #BACKFILL_BATCH_SIZE}. Cached values are kept.
+     *
+     * @param entities the entities that were read
+     * @param policy cache population policy
+     */
+    public void backfillCache(List<? extends LembasEntity> entities, CachePolicy policy){
+        if ( policy == CachePolicy.NONE){
+            return;
+        }
+
+        for ( List<? extends LembasEntity> batch : Lists.partition(entities, BACKFILL_BATCH_SIZE)){
+            HashMap<String, LembasEntity> values = new HashMap<>();
+            for ( LembasEntity entity : batch){
+                if ( entity.objectKey != null && fitsInCache(entity)){
+                    values.put(entity.objectKey, entity);
+                }
+            }
+            if ( values.isEmpty()){
+                continue;
+            }
+
+            if ( policy == CachePolicy.ASYNC_BACKFILL){
+                getAsyncCacheService().putAll(values, cacheExpiration,
+                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            } else {
+                getCacheService().putAll(values, cacheExpiration,
+                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            }
+        }
     }
 
     public void removeFromCache(String key){
-        getCacheService().delete(key);
+        HotKeyTracker tracker = HotKeyTracker.find(getKind());
+        if ( tracker != null){
+            tracker.evict(key);
+        }
+        getCacheService().delete(key, CACHE_NO_READD_MILLIS);
+    }
+
+    public void removeAllFromCache(Collection<String> keys){
+        HotKeyTracker tracker = HotKeyTracker.find(getKind());
+        if ( tracker != null){
+            tracker.evictAll(keys);
+        }
+        getCacheService().deleteAll(keys, CACHE_NO_READD_MILLIS);
     }
 
 
@@ -180,17 +782,68 @@ public class EntityManager<T extends LembasEntity> {
      * @return the demo entity; null if the key could not be found.
      */
     public T getEntity(Key key) {
-        if ( getEntityFromCache(KeyFactory.keyToString(key)) != null) {
-            T t =getEntityFromCache(KeyFactory.keyToString(key));
-            return t;
+        return getEntity(key, getCachePolicy);
+    }
+
+    /**
+     * Looks up a  entity by key.
+     *
+     * @param key the entity key.
+     * @param policy how to populate the cache on a miss.
+     * @return the demo entity; null if the key could not be found.
+     */
+    public T getEntity(Key key, CachePolicy policy) {
+        String keyString = KeyFactory.keyToString(key);
+
+        HotKeyTracker tracker = HotKeyTracker.find(getKind());
+        boolean hot = false;
+        if ( tracker != null){
+            byte[] replica = tracker.getReplica(keyString);
+            if ( replica != null){
+                return (T) Utils.deserialize(replica);
+            }
+            hot = tracker.record(keyString);
         }
 
-        DatastoreService ds = getDatastoreService();
-        Entity entity = getDatastoreEntity(ds, key);
-        if (entity != null) {
-            return fromEntity(entity);
+        SlowOperationLog.Trace trace = SlowOperationLog.start("get", getKind());
+        long start = trace == null ? 0 : System.nanoTime();
+
+        T t = getEntityFromCache(keyString);
+        if ( trace != null){
+            trace.cache(System.nanoTime() - start);
         }
-        return null;
+        if ( t == null) {
+            if ( trace != null){
+                start = System.nanoTime();
+            }
+            Entity entity = getDatastoreEntity(getDatastoreService(), key);
+            if ( trace != null){
+                trace.rpc(System.nanoTime() - start);
+            }
+            if (entity != null) {
+                if ( trace != null){
+                    start = System.nanoTime();
+                }
+                t = hydrate(entity);
+                if ( trace != null){
+                    trace.hydration(System.nanoTime() - start);
+                    start = System.nanoTime();
+                }
+                backfillCache(Collections.singletonList(t), policy);
+                if ( trace != null){
+                    trace.cache(System.nanoTime() - start);
+                }
+            }
+        }
+        if ( trace != null){
+            trace.rows(t == null ? 0 : 1);
+            trace.finish();
+        }
+
+        if ( hot && t != null){
+            tracker.replicate(keyString, Utils.serialize(t));
+        }
+        return t;
     }
 
     public T getEntity(String objectKey){
@@ -332,7 +985,51 @@ public class EntityManager<T extends LembasEntity> {
          * @return an {@code Iterable} collection of com.nomad.lembas.datastore entities.
          */
     public ArrayList<T> queryEntities(Query query, FetchOptions options) {
+        return queryEntities(query, options, queryCachePolicy);
+    }
+
+    /**
+     * Queries the com.nomad.lembas.datastore for entities, populating the cache with the given policy.
+     *
+     * @param query com.nomad.lembas.datastore query object.
+     * @param options query options.
+     * @param policy how to populate the cache with the results.
+     *
+     * @return model entities.
+     */
+    public ArrayList<T> queryEntities(Query query, FetchOptions options, final CachePolicy policy) {
+        SlowOperationLog.Trace trace = SlowOperationLog.start("query", getKind());
+        if ( trace == null){
+            return queryEntities(query, options, policy, null);
+        }
+
+        trace.query(query);
+        try {
+            return queryEntities(query, options, policy, trace);
+        } finally {
+            trace.finish();
+        }
+    }
+
+    private ArrayList<T> queryEntities(Query query, FetchOptions options, final CachePolicy policy,
+                                       final SlowOperationLog.Trace trace) {
+        long start = trace == null ? 0 : System.nanoTime();
         PreparedQuery preparedQuery = getDatastoreService().prepare(query);
+
+        if ( hydrationChunkSize > 0){
+            List<Entity> entities = preparedQuery.asList(options);
+            int size = entities.size();
+            if ( trace != null){
+                trace.rpc(System.nanoTime() - start);
+                trace.rows(size);
+            }
+
+            // chunks time their hydration and backfill themselves
+            return size > hydrationChunkSize
+                    ? hydrateInParallel(entities, policy, trace)
+                    : hydrateChunk(entities, policy, trace);
+        }
+
         final Iterable<Entity> iterable = preparedQuery.asIterable(options);
 
           Iterable<T> iterableWrapper = new Iterable<T>() {
@@ -347,12 +1044,30 @@ public class EntityManager<T extends LembasEntity> {
 
                     @Override
                     public T next() {
-                        return fromEntity(iterator.next());
+                        if ( trace == null){
+                            return hydrate(iterator.next());
+                        }
+
+                        // the iterator fetches batches lazily, time spent in it is datastore time
+                        long start = System.nanoTime();
+                        Entity entity = iterator.next();
+                        long fetched = System.nanoTime();
+                        T t = hydrate(entity);
+                        trace.rpc(fetched - start);
+                        trace.hydration(System.nanoTime() - fetched);
+                        return t;
                     }
 
                     @Override
                     public boolean hasNext() {
-                        return iterator.hasNext();
+                        if ( trace == null){
+                            return iterator.hasNext();
+                        }
+
+                        long start = System.nanoTime();
+                        boolean hasNext = iterator.hasNext();
+                        trace.rpc(System.nanoTime() - start);
+                        return hasNext;
                     }
                 };
             }
@@ -360,6 +1075,15 @@ public class EntityManager<T extends LembasEntity> {
 //        return iterableWrapper;
 
         ArrayList<T> result =  Lists.newArrayList(iterableWrapper);
+        if ( trace != null){
+            trace.rows(result.size());
+            start = System.nanoTime();
+        }
+
+        backfillCache(result, policy);
+        if ( trace != null){
+            trace.cache(System.nanoTime() - start);
+        }
         return result;
     }
 
@@ -367,6 +1091,91 @@ public class EntityManager<T extends LembasEntity> {
         return queryEntities(q,  FetchOptions.Builder.withDefaults());
     }
 
+    public ArrayList<T> queryEntities(Query q, CachePolicy policy) {
+        return queryEntities(q,  FetchOptions.Builder.withDefaults(), policy);
+    }
+
+    /**
+     * Hydrates entities in chunks of {@code hydrationChunkSize} on separate threads,
+     * keeping the order of the given list.
+     *
+     * @param entities com.nomad.lembas.datastore entities.
+     * @param policy how to populate the cache with the results.
+     * @return model entities in the same order.
+     */
+    protected ArrayList<T> hydrateInParallel(List<Entity> entities, CachePolicy policy) {
+        return hydrateInParallel(entities, policy, null);
+    }
+
+    private ArrayList<T> hydrateInParallel(List<Entity> entities, final CachePolicy policy,
+                                           final SlowOperationLog.Trace trace) {
+        List<List<Entity>> chunks = Lists.partition(entities, hydrationChunkSize);
+
+        ExecutorService executor = hydrationExecutor;
+        boolean ownExecutor = executor == null;
+        if ( ownExecutor){
+            int threads = Math.min(hydrationThreads, chunks.size());
+            executor = Executors.newFixedThreadPool(threads, ThreadManager.currentRequestThreadFactory());
+        }
+
+        try {
+            ArrayList<Future<ArrayList<T>>> futures = new ArrayList<>(chunks.size());
+            for ( final List<Entity> chunk : chunks){
+                futures.add(executor.submit(new Callable<ArrayList<T>>() {
+                    @Override
+                    public ArrayList<T> call() {
+                        return hydrateChunk(chunk, policy, trace);
+                    }
+                }));
+            }
+
+            ArrayList<T> result = new ArrayList<>(entities.size());
+            for ( Future<ArrayList<T>> future : futures){
+                result.addAll(future.get());
+            }
+            return result;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while hydrating " + getKind(), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to hydrate " + getKind(), e.getCause());
+        } finally {
+            if ( ownExecutor){
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Hydrates a chunk of entities and backfills the cache in batches.
+     *
+     * @param chunk com.nomad.lembas.datastore entities.
+     * @param policy how to populate the cache with the results.
+     * @return model entities in the same order.
+     */
+    protected ArrayList<T> hydrateChunk(List<Entity> chunk, CachePolicy policy) {
+        return hydrateChunk(chunk, policy, null);
+    }
+
+    private ArrayList<T> hydrateChunk(List<Entity> chunk, CachePolicy policy, SlowOperationLog.Trace trace) {
+        long start = trace == null ? 0 : System.nanoTime();
+        ArrayList<T> result = new ArrayList<>(chunk.size());
+        for ( Entity entity : chunk){
+            result.add(hydrate(entity));
+        }
+        if ( trace != null){
+            trace.hydration(System.nanoTime() - start);
+            start = System.nanoTime();
+        }
+
+        backfillCache(result, policy);
+        if ( trace != null){
+            trace.cache(System.nanoTime() - start);
+        }
+        return result;
+    }
+
     /** conveinence methods */
     public static Query query(Class kind){
         return new Query (kind.getSimpleName());
@@ -378,6 +1187,15 @@ public class EntityManager<T extends LembasEntity> {
         return query;
     }
 
+    /**
+     * Starts a reusable query template for this kind.
+     *
+     * @return a template builder.
+     */
+    public QueryTemplate.Builder<T> template() {
+        return QueryTemplate.builder(this);
+    }
+
     public Query query(LembasEntity parent){
 
         Query query = query();
@@ -491,6 +1309,32 @@ public class EntityManager<T extends LembasEntity> {
      * @return an model entity.
      */
     public  T fromEntity(Entity entity)  {
+        return fromEntity(entity, CachePolicy.WRITE_THROUGH);
+    };
+
+    /**
+     * Creates a model the entity based on com.nomad.lembas.datastore entity.
+     *
+     * @param entity com.nomad.lembas.datastore entity.
+     * @param policy how to populate the cache with the entity.
+     *
+     * @return an model entity.
+     */
+    public  T fromEntity(Entity entity, CachePolicy policy)  {
+        T instance = hydrate(entity);
+
+        backfillCache(Collections.singletonList(instance), policy);
+        return instance;
+    }
+
+    /**
+     * Creates a model entity based on com.nomad.lembas.datastore entity without touching the cache.
+     *
+     * @param entity com.nomad.lembas.datastore entity.
+     *
+     * @return an model entity.
+     */
+    protected T hydrate(Entity entity) {
         T instance = null;
         try {
             instance = this.entityClass.newInstance();
@@ -499,11 +1343,13 @@ public class EntityManager<T extends LembasEntity> {
         } catch (IllegalAccessException e) {
             e.printStackTrace();
         }
-        instance.setEntity(entity);
-
-        storeEntityToCache(instance);
+        if ( lazyHydration){
+            instance.setEntityLazily(entity);
+        } else {
+            instance.setEntity(entity);
+        }
         return instance;
-    };
+    }
 
     public T fromKey(String key){
 
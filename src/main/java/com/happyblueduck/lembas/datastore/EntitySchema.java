@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.Entity;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mapping of stored property names to the fields of an entity class, resolved once per
+ * class and property name. Properties without a field are skipped without reflection
+ * errors, and reported once per class.
+ *
+ * @see SchemaEvolution
+ */
+public class EntitySchema {
+    private static final Logger logger =
+            Logger.getLogger(EntitySchema.class.getCanonicalName());
+
+    private static final ConcurrentHashMap<Class<?>, EntitySchema> schemas = new ConcurrentHashMap<>();
+
+    // marks properties without a field, the map does not take nulls
+    private static final Binding SKIP = new Binding(null, null, false, null, new Method[0]);
+
+    private final Class<?> entityClass;
+    private final HashMap<String, Field> fields = new HashMap<>();
+    private final Method[] methods;
+    private final HashMap<String, String> renamed = new HashMap<>();
+    private final HashSet<String> removed = new HashSet<>();
+    private final HashMap<String, PropertyConverter> converters = new HashMap<>();
+
+    private final ConcurrentHashMap<String, Binding> bindings = new ConcurrentHashMap<>();
+    private final HashMap<String, String[]> storedNames = new HashMap<>();
+
+    /**
+     * @param entityClass the entity class
+     * @return the schema of the class
+     */
+    public static EntitySchema of(Class<? extends LembasEntity> entityClass) {
+        EntitySchema schema = schemas.get(entityClass);
+        if ( schema == null){
+            schemas.putIfAbsent(entityClass, new EntitySchema(entityClass));
+            schema = schemas.get(entityClass);
+        }
+        return schema;
+    }
+
+    private EntitySchema(Class<?> entityClass) {
+        this.entityClass = entityClass;
+        this.methods = entityClass.getMethods();
+
+        for ( Field f : entityClass.getFields()){
+            if ( !Modifier.isStatic(f.getModifiers())){
+                fields.put(f.getName(), f);
+            }
+        }
+
+        SchemaEvolution evolution = entityClass.getAnnotation(SchemaEvolution.class);
+        if ( evolution == null){
+            return;
+        }
+
+        for ( SchemaEvolution.Renamed r : evolution.renamed()){
+            renamed.put(r.from(), r.to());
+        }
+        Collections.addAll(removed, evolution.removed());
+        for ( SchemaEvolution.Converted c : evolution.converted()){
+            try {
+                converters.put(c.property(), c.converter().newInstance());
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new RuntimeException("cannot create converter for " + entityClass.getSimpleName()
+                        + "." + c.property(), e);
+            }
+        }
+    }
+
+    /**
+     * @param fieldName name of a public field
+     * @return the field, null if the class has none by that name
+     */
+    public Field field(String fieldName) {
+        return fields.get(fieldName);
+    }
+
+    /**
+     * @return the public instance fields of the class
+     */
+    public Collection<Field> fields() {
+        return Collections.unmodifiableCollection(fields.values());
+    }
+
+    /**
+     * Lists the property names a field can be stored under: its own name, as an embedded
+     * entity, and the names it was renamed from.
+     *
+     * @param fieldName name of a public field
+     * @return candidate property names
+     */
+    public String[] storedNames(String fieldName) {
+        synchronized (storedNames) {
+            String[] names = storedNames.get(fieldName);
+            if ( names == null){
+                ArrayList<String> candidates = new ArrayList<>();
+                candidates.add(fieldName);
+                candidates.add(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER + fieldName);
+                for ( Map.Entry<String, String> r : renamed.entrySet()){
+                    if ( r.getValue().equals(fieldName)){
+                        candidates.add(r.getKey());
+                        candidates.add(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER + r.getKey());
+                    }
+                }
+                names = candidates.toArray(new String[candidates.size()]);
+                storedNames.put(fieldName, names);
+            }
+            return names;
+        }
+    }
+
+    /**
+     * @param propertyName name of the stored property
+     * @return how to read the property, null if it has no field
+     */
+    public Binding binding(String propertyName) {
+        Binding binding = bindings.get(propertyName);
+        if ( binding == null){
+            binding = resolve(propertyName);
+            bindings.putIfAbsent(propertyName, binding);
+        }
+        return binding == SKIP ? null : binding;
+    }
+
+    private Binding resolve(String propertyName) {
+        boolean embedded = propertyName.startsWith(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER);
+        String name = embedded
+                ? propertyName.substring(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER.length())
+                : propertyName;
+
+        if ( removed.contains(name)){
+            return SKIP;
+        }
+        if ( renamed.containsKey(name)){
+            name = renamed.get(name);
+        }
+
+        Field f = fields.get(name);
+        if ( f == null){
+            logger.info("no such field in " + entityClass.getSimpleName() + ", will skip:" + propertyName);
+            return SKIP;
+        }
+
+        // same matching as LembasEntity.setupFieldWithMethod
+        String setterName = name.startsWith("_") ? name.substring(1) : name;
+        setterName = "set" + setterName;
+        ArrayList<Method> setters = new ArrayList<>();
+        for ( Method m : methods){
+            if ( m.getName().equalsIgnoreCase(setterName) && m.getParameterTypes().length > 0){
+                setters.add(m);
+            }
+        }
+
+        return new Binding(f, name, embedded, converters.get(name), setters.toArray(new Method[setters.size()]));
+    }
+
+    /**
+     * Rewrites a stored entity to the current schema: renamed properties are moved,
+     * converted ones rewritten, removed ones deleted.
+     *
+     * @param entity com.happyblueduck.lembas.datastore entity.
+     * @param removeUnknown also delete properties that have no field and are not declared removed
+     * @return true if the entity was changed
+     */
+    public boolean migrate(Entity entity, boolean removeUnknown) {
+        boolean changed = false;
+
+        // copy, the entity is modified while iterating
+        for ( Map.Entry<String, Object> property : new ArrayList<>(entity.getProperties().entrySet())){
+            String propertyName = property.getKey();
+            Binding binding = binding(propertyName);
+
+            if ( binding == null){
+                if ( removeUnknown || isDeclaredRemoved(propertyName)){
+                    entity.removeProperty(propertyName);
+                    changed = true;
+                }
+                continue;
+            }
+
+            String storedName = binding.embedded
+                    ? LembasEntity.LEMBAS_PROPERTY_IDENTIFIER + binding.fieldName
+                    : binding.fieldName;
+            Object value = binding.convert(property.getValue());
+
+            if ( !storedName.equals(propertyName)){
+                entity.removeProperty(propertyName);
+                if ( !entity.hasProperty(storedName)){
+                    setProperty(entity, storedName, value, entity.isUnindexedProperty(propertyName));
+                }
+                changed = true;
+            } else if ( binding.converter != null && !equal(value, property.getValue())){
+                setProperty(entity, storedName, value, entity.isUnindexedProperty(propertyName));
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean isDeclaredRemoved(String propertyName) {
+        if ( propertyName.startsWith(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER)){
+            propertyName = propertyName.substring(LembasEntity.LEMBAS_PROPERTY_IDENTIFIER.length());
+        }
+        return removed.contains(propertyName);
+    }
+
+    private static void setProperty(Entity entity, String name, Object value, boolean unindexed) {
+        if ( unindexed){
+            entity.setUnindexedProperty(name, value);
+        } else {
+            entity.setProperty(name, value);
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * How a stored property is read into its field.
+     */
+    public static class Binding {
+        public final Field field;
+        public final String fieldName;
+        /** the property holds a serialized {@code LembasEntity} */
+        public final boolean embedded;
+        public final PropertyConverter converter;
+        /** setters named after the field, matched by value type when reading */
+        public final Method[] setters;
+
+        Binding(Field field, String fieldName, boolean embedded, PropertyConverter converter, Method[] setters) {
+            this.field = field;
+            this.fieldName = fieldName;
+            this.embedded = embedded;
+            this.converter = converter;
+            this.setters = setters;
+        }
+
+        public Object convert(Object storedValue) {
+            return converter == null ? storedValue : converter.convert(storedValue);
+        }
+    }
+}
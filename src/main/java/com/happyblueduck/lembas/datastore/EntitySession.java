@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.*;
+import com.google.common.collect.Lists;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+
+/**
+ * Unit of work collecting upserts and deletes from several {@code EntityManager}s.
+ * Nothing is written until {@link #commit()}, which flushes all pending writes in batch
+ * puts and batch deletes, then updates memcache with one batched compare-and-set write
+ * and one deleteAll per kind namespace. Without a cross group transaction the batches are
+ * split at the datastore limit of {@value #BATCH_SIZE} entities.
+ *
+ * <pre>
+ *     EntitySession session = new EntitySession(true);
+ *     session.upsert(orderManager, order);
+ *     session.upsert(customerManager, customer);
+ *     session.delete(lineItemManager, removedItem);
+ *     session.commit();
+ * </pre>
+ *
+ * Declared {@link Aggregate}s of the written kinds are maintained in the same commit.
+ * With a cross group transaction the stored state is read and the shards are updated in
+ * it, and the shards count towards its entity groups. Without one, the stored state is
+ * read outside any transaction and the shards are updated after the batch writes, each
+ * in its own transaction; concurrent writers to the same entities can then be counted
+ * twice or missed, and the totals drift until {@code EntityManager.rebuildAggregates}.
+ * Use a cross group session, or {@code EntityManager} writes, for kinds whose totals must
+ * stay exact.
+ *
+ * A session is not thread safe and should not outlive a request.
+ */
+public class EntitySession {
+    private static final Logger logger =
+            Logger.getLogger(EntitySession.class.getCanonicalName());
+
+    /** datastore limit for entity groups in a cross group transaction */
+    public static final int MAX_CROSS_GROUP_ENTITY_GROUPS = 25;
+
+    /** datastore limit for batch puts and deletes */
+    public static final int BATCH_SIZE = 500;
+
+    private final boolean crossGroupTransaction;
+
+    private final LinkedHashMap<Key, LembasEntity> upserts = new LinkedHashMap<>();
+    private final LinkedHashSet<Key> deletes = new LinkedHashSet<>();
+    private final HashMap<Key, EntityManager<?>> managers = new HashMap<>();
+
+    public EntitySession() {
+        this(false);
+    }
+
+    /**
+     * @param crossGroupTransaction commit all writes in one cross group transaction
+     */
+    public EntitySession(boolean crossGroupTransaction) {
+        this.crossGroupTransaction = crossGroupTransaction;
+    }
+
+    /**
+     * Schedules an upsert, replacing a pending delete of the same entity. The entity is
+     * read at {@link #commit()}, changes made to it until then are written.
+     *
+     * @param manager manager of the entity kind
+     * @param handsomeEntity the entity to write
+     */
+    public <T extends LembasEntity> void upsert(EntityManager<T> manager, T handsomeEntity) {
+        Utils.assertTrue(handsomeEntity != null, "entity cannot be null");
+        Key key = handsomeEntity.getKey();
+
+        deletes.remove(key);
+        upserts.put(key, handsomeEntity);
+        managers.put(key, manager);
+    }
+
+    /**
+     * Schedules a delete, replacing a pending upsert of the same entity.
+     *
+     * @param manager manager of the entity kind
+     * @param handsomeEntity the entity to delete
+     */
+    public <T extends LembasEntity> void delete(EntityManager<T> manager, T handsomeEntity) {
+        Utils.assertTrue(handsomeEntity != null, "entity cannot be null");
+        delete(manager, handsomeEntity.getKey());
+    }
+
+    public void delete(EntityManager<?> manager, String entityKey) {
+        delete(manager, manager.getKey(entityKey));
+    }
+
+    public void delete(EntityManager<?> manager, Key key) {
+        Utils.assertTrue(key != null, "key cannot be null");
+        upserts.remove(key);
+        deletes.add(key);
+        managers.put(key, manager);
+    }
+
+    public boolean isEmpty() {
+        return upserts.isEmpty() && deletes.isEmpty();
+    }
+
+    /**
+     * Writes all pending changes and updates the cache. Pending changes are dropped
+     * after a successful commit; on failure they are kept so the session can be retried.
+     */
+    public void commit() {
+        if ( isEmpty()){
+            return;
+        }
+
+        ArrayList<Entity> entities = new ArrayList<>(upserts.size());
+        for ( Map.Entry<Key, LembasEntity> entry : upserts.entrySet()){
+            entities.add(prepareForWrite(managers.get(entry.getKey()), entry.getValue()));
+        }
+
+        DatastoreService ds = getDatastoreService();
+        Transaction txn = null;
+        if ( crossGroupTransaction){
+            txn = ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+        }
+
+        HashMap<AggregateStore, Set<String>> changedGroups = new HashMap<>();
+        try {
+            HashMap<AggregateStore, Map<String, AggregateStore.Delta>> deltas = collectAggregateDeltas(ds, txn);
+            if ( txn != null){
+                // the aggregate shards are known only once the deltas are collected
+                Utils.assertTrue(countEntityGroups(deltas) <= MAX_CROSS_GROUP_ENTITY_GROUPS,
+                        "too many entity groups for a cross group transaction");
+            }
+
+            // explicit null transaction writes without one; a transaction holds at most
+            // 25 entity groups, far below the batch limit
+            for ( List<Entity> batch : Lists.partition(entities, BATCH_SIZE)){
+                ds.put(txn, batch);
+            }
+            for ( List<Key> batch : Lists.partition(new ArrayList<>(deletes), BATCH_SIZE)){
+                ds.delete(txn, batch);
+            }
+            for ( Map.Entry<AggregateStore, Map<String, AggregateStore.Delta>> entry : deltas.entrySet()){
+                changedGroups.put(entry.getKey(), entry.getKey().apply(ds, txn, entry.getValue()));
+            }
+            if ( txn != null){
+                txn.commit();
+            }
+        } finally {
+            if ( txn != null && txn.isActive()){
+                txn.rollback();
+            }
+        }
+
+        logger.info("session committed " + entities.size() + " upserts, " + deletes.size() + " deletes");
+        updateCache();
+        for ( Map.Entry<AggregateStore, Set<String>> entry : changedGroups.entrySet()){
+            entry.getKey().invalidate(entry.getValue());
+        }
+        clear();
+    }
+
+    // reads the stored state of written entities whose kinds declare aggregates; without a
+    // transaction the read may be stale by the time of the write, see the class doc
+    private HashMap<AggregateStore, Map<String, AggregateStore.Delta>> collectAggregateDeltas(DatastoreService ds, Transaction txn) {
+        HashMap<AggregateStore, Map<String, AggregateStore.Delta>> deltas = new HashMap<>();
+        HashMap<Key, AggregateStore> aggregated = new HashMap<>();
+        for ( Map.Entry<Key, EntityManager<?>> entry : managers.entrySet()){
+            AggregateStore aggregates = entry.getValue().getAggregates();
+            if ( !aggregates.isEmpty()){
+                aggregated.put(entry.getKey(), aggregates);
+            }
+        }
+        if ( aggregated.isEmpty()){
+            return deltas;
+        }
+
+        HashMap<Key, Entity> stored = new HashMap<>();
+        for ( List<Key> batch : Lists.partition(new ArrayList<>(aggregated.keySet()), BATCH_SIZE)){
+            stored.putAll(ds.get(txn, batch));
+        }
+        for ( Map.Entry<Key, AggregateStore> entry : aggregated.entrySet()){
+            Map<String, AggregateStore.Delta> storeDeltas = deltas.get(entry.getValue());
+            if ( storeDeltas == null){
+                storeDeltas = new HashMap<>();
+                deltas.put(entry.getValue(), storeDeltas);
+            }
+            LembasEntity written = upserts.get(entry.getKey());
+            entry.getValue().collect(storeDeltas, stored.get(entry.getKey()),
+                    written == null ? null : written.getEntity());
+        }
+        return deltas;
+    }
+
+    private static <T extends LembasEntity> Entity prepareForWrite(EntityManager<T> manager, LembasEntity handsomeEntity) {
+        return manager.prepareForWrite(manager.getEntityClass().cast(handsomeEntity));
+    }
+
+    /**
+     * Drops all pending changes.
+     */
+    public void clear() {
+        upserts.clear();
+        deletes.clear();
+        managers.clear();
+    }
+
+    // shards are root entities, each one is a group of its own
+    private int countEntityGroups(Map<AggregateStore, Map<String, AggregateStore.Delta>> deltas) {
+        HashSet<Key> roots = new HashSet<>();
+        for ( Key key : managers.keySet()){
+            Key root = key;
+            while ( root.getParent() != null){
+                root = root.getParent();
+            }
+            roots.add(root);
+        }
+        for ( Map.Entry<AggregateStore, Map<String, AggregateStore.Delta>> entry : deltas.entrySet()){
+            roots.addAll(entry.getKey().shardKeys(entry.getValue()));
+        }
+        return roots.size();
+    }
+
+    private void updateCache() {
+        HashMap<String, EntityManager<?>> namespaces = new HashMap<>();
+        HashMap<String, Map<String, LembasEntity>> stores = new HashMap<>();
+        HashMap<String, Set<String>> removals = new HashMap<>();
+
+        for ( Map.Entry<Key, EntityManager<?>> entry : managers.entrySet()){
+            EntityManager<?> manager = entry.getValue();
+            String namespace = manager.getKind();
+            namespaces.put(namespace, manager);
+
+            Key key = entry.getKey();
+            LembasEntity handsomeEntity = upserts.get(key);
+            if ( handsomeEntity != null){
+                if ( handsomeEntity.objectKey == null){
+                    continue;
+                }
+                Map<String, LembasEntity> values = stores.get(namespace);
+                if ( values == null){
+                    values = new HashMap<>();
+                    stores.put(namespace, values);
+                }
+                values.put(handsomeEntity.objectKey, handsomeEntity);
+            } else {
+                Set<String> keys = removals.get(namespace);
+                if ( keys == null){
+                    keys = new HashSet<>();
+                    removals.put(namespace, keys);
+                }
+                keys.add(KeyFactory.keyToString(key));
+            }
+        }
+
+        for ( Map.Entry<String, Map<String, LembasEntity>> entry : stores.entrySet()){
+            namespaces.get(entry.getKey()).storeEntitiesToCache(entry.getValue().values());
+        }
+        for ( Map.Entry<String, Set<String>> entry : removals.entrySet()){
+            namespaces.get(entry.getKey()).removeAllFromCache(entry.getValue());
+        }
+    }
+}
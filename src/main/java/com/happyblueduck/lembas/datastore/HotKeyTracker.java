@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per kind hot key detection for the read path. A sample of reads is counted with the
+ * space-saving algorithm, which keeps a fixed number of counters and reliably holds the
+ * most frequent keys. Counters are halved every window so the hot set follows traffic.
+ * Keys whose estimated reads in a window cross the threshold are replicated in process
+ * for a short time, taking load off their memcache node.
+ *
+ * Replicas are kept serialized and every hit is hydrated into a new instance, so a
+ * request may modify the entity it got without affecting other requests.
+ */
+public class HotKeyTracker {
+    private static final Logger logger =
+            Logger.getLogger(HotKeyTracker.class.getCanonicalName());
+
+    private static final ConcurrentHashMap<String, HotKeyTracker> trackers = new ConcurrentHashMap<>();
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+    public static final long DEFAULT_THRESHOLD = 1000;
+    public static final long DEFAULT_WINDOW_MILLIS = 10 * 1000;
+    public static final long DEFAULT_REPLICA_TTL_MILLIS = 5 * 1000;
+
+    private final String kind;
+    private final int capacity;
+    private final int sampleRate;
+    private final long threshold;
+    private final long windowMillis;
+    private final long replicaTtlMillis;
+
+    private final HashMap<String, Counter> counters = new HashMap<>();
+    private long windowStart = System.currentTimeMillis();
+
+    private final ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<>();
+
+    /**
+     * @param kind entity kind
+     * @param capacity number of keys counted at once
+     * @param sampleRate one in {@code sampleRate} reads is counted
+     * @param threshold estimated reads per window that make a key hot
+     * @param windowMillis counters are halved after every window
+     * @param replicaTtlMillis how long a hot key is served from the local replica
+     */
+    public HotKeyTracker(String kind, int capacity, int sampleRate, long threshold,
+                         long windowMillis, long replicaTtlMillis) {
+        Utils.assertTrue(capacity > 0, "capacity must be positive");
+        Utils.assertTrue(sampleRate > 0, "sampleRate must be positive");
+        this.kind = kind;
+        this.capacity = capacity;
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.windowMillis = windowMillis;
+        this.replicaTtlMillis = replicaTtlMillis;
+    }
+
+    /**
+     * Enables tracking for a kind with default settings, keeping an existing tracker.
+     *
+     * @param kind entity kind
+     * @return the tracker of the kind
+     */
+    public static HotKeyTracker enable(String kind) {
+        HotKeyTracker tracker = trackers.get(kind);
+        if ( tracker == null){
+            trackers.putIfAbsent(kind, new HotKeyTracker(kind, DEFAULT_CAPACITY, DEFAULT_SAMPLE_RATE,
+                    DEFAULT_THRESHOLD, DEFAULT_WINDOW_MILLIS, DEFAULT_REPLICA_TTL_MILLIS));
+            tracker = trackers.get(kind);
+        }
+        return tracker;
+    }
+
+    /**
+     * Enables tracking for a kind, replacing an existing tracker.
+     *
+     * @param tracker the configured tracker
+     * @return the tracker
+     */
+    public static HotKeyTracker enable(HotKeyTracker tracker) {
+        trackers.put(tracker.kind, tracker);
+        return tracker;
+    }
+
+    public static void disable(String kind) {
+        trackers.remove(kind);
+    }
+
+    /**
+     * @param kind entity kind
+     * @return the tracker of the kind, null if tracking is not enabled
+     */
+    public static HotKeyTracker find(String kind) {
+        return trackers.get(kind);
+    }
+
+    /**
+     * @return current hot keys of every tracked kind
+     */
+    public static Map<String, List<HotKey>> getAllHotKeys() {
+        HashMap<String, List<HotKey>> result = new HashMap<>();
+        for ( HotKeyTracker tracker : trackers.values()){
+            result.put(tracker.kind, tracker.getHotKeys());
+        }
+        return result;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Samples a read of the key.
+     *
+     * @param key cache key of the entity
+     * @return true if the key is hot and the loaded entity should be replicated
+     */
+    public boolean record(String key) {
+        if ( sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0){
+            return false;
+        }
+
+        long estimate;
+        synchronized (this) {
+            decay();
+
+            Counter counter = counters.get(key);
+            if ( counter == null){
+                if ( counters.size() < capacity){
+                    counter = new Counter(0);
+                } else {
+                    // space-saving: the new key takes over the smallest counter
+                    Map.Entry<String, Counter> min = null;
+                    for ( Map.Entry<String, Counter> entry : counters.entrySet()){
+                        if ( min == null || entry.getValue().count < min.getValue().count){
+                            min = entry;
+                        }
+                    }
+                    counters.remove(min.getKey());
+                    counter = new Counter(min.getValue().count);
+                }
+                counters.put(key, counter);
+            }
+            counter.count++;
+            estimate = (counter.count - counter.error) * sampleRate;
+        }
+        return estimate >= threshold;
+    }
+
+    private void decay() {
+        long now = System.currentTimeMillis();
+        if ( now - windowStart < windowMillis){
+            return;
+        }
+        windowStart = now;
+
+        Iterator<Counter> iterator = counters.values().iterator();
+        while ( iterator.hasNext()){
+            Counter counter = iterator.next();
+            counter.count /= 2;
+            counter.error /= 2;
+            if ( counter.count == 0){
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param key cache key of the entity
+     * @return the serialized replica of the entity, null if the key is not replicated or expired
+     */
+    public byte[] getReplica(String key) {
+        Replica replica = replicas.get(key);
+        if ( replica == null){
+            return null;
+        }
+        if ( replica.expiresAt < System.currentTimeMillis()){
+            replicas.remove(key, replica);
+            return null;
+        }
+        return replica.value;
+    }
+
+    /**
+     * Keeps a serialized copy of a hot entity. Replicas are bytes rather than the loaded
+     * object so concurrent requests each hydrate their own instance and can't see each
+     * other's modifications.
+     *
+     * @param key cache key of the entity
+     * @param value the serialized entity
+     */
+    public void replicate(String key, byte[] value) {
+        if ( value == null){
+            return;
+        }
+        if ( replicas.size() >= capacity && !replicas.containsKey(key)){
+            purgeExpiredReplicas();
+            if ( replicas.size() >= capacity){
+                return;
+            }
+        }
+        if ( replicas.put(key, new Replica(value, System.currentTimeMillis() + replicaTtlMillis)) == null){
+            logger.info("replicating hot key " + kind + ":" + key);
+        }
+    }
+
+    public void evict(String key) {
+        replicas.remove(key);
+    }
+
+    public void evictAll(Collection<String> keys) {
+        for ( String key : keys){
+            replicas.remove(key);
+        }
+    }
+
+    private void purgeExpiredReplicas() {
+        long now = System.currentTimeMillis();
+        for ( Map.Entry<String, Replica> entry : replicas.entrySet()){
+            if ( entry.getValue().expiresAt < now){
+                replicas.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return tracked keys ordered by estimated reads in the current window, highest first
+     */
+    public synchronized List<HotKey> getHotKeys() {
+        ArrayList<HotKey> result = new ArrayList<>(counters.size());
+        for ( Map.Entry<String, Counter> entry : counters.entrySet()){
+            Counter counter = entry.getValue();
+            result.add(new HotKey(entry.getKey(), counter.count * sampleRate, counter.error * sampleRate,
+                    replicas.containsKey(entry.getKey())));
+        }
+        Collections.sort(result, new Comparator<HotKey>() {
+            @Override
+            public int compare(HotKey a, HotKey b) {
+                return a.reads < b.reads ? 1 : (a.reads > b.reads ? -1 : 0);
+            }
+        });
+        return result;
+    }
+
+    private static class Counter {
+        long count;
+        long error;
+
+        Counter(long error) {
+            this.count = error;
+            this.error = error;
+        }
+    }
+
+    private static class Replica {
+        final byte[] value;
+        final long expiresAt;
+
+        Replica(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static class HotKey {
+        public final String key;
+        /** estimated reads in the current window */
+        public final long reads;
+        /** the estimate may overcount by at most this much */
+        public final long error;
+        public final boolean replicated;
+
+        public HotKey(String key, long reads, long error, boolean replicated) {
+            this.key = key;
+            this.reads = reads;
+            this.error = error;
+            this.replicated = replicated;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + reads + (replicated ? " (replicated)" : "");
+        }
+    }
+}
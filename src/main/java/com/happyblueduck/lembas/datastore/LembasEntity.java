@@ -14,9 +14,12 @@
  */
 package com.happyblueduck.lembas.datastore;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
 import com.google.common.collect.Lists;
 import com.happyblueduck.lembas.core.LembasObject;
 import com.happyblueduck.lembas.core.LembasUtil;
@@ -33,6 +36,12 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -42,6 +51,11 @@ import java.util.UUID;
  */
 public class LembasEntity extends LembasObject implements Serializable {
     public static final String LEMBAS_PROPERTY_IDENTIFIER = "$_";
+
+    // datastore limit for indexed strings, longer values are stored as unindexed Text
+    public static final int TEXT_THRESHOLD_BYTES = 1500;
+    // longer strings are gzipped into an unindexed Blob
+    public static final int COMPRESSION_THRESHOLD = 16 * 1024;
     protected Entity entity;
 
     //private static final long serialVersionUID = 112671230986712376L;
@@ -54,6 +68,14 @@ public class LembasEntity extends LembasObject implements Serializable {
     public static final int CANCELLED      = 3;
     public int _status;
 
+    // incremented on every write, lets the cache tell a stale copy from a fresh one
+    public long _version;
+
+    // lazy mode: fields already read from the entity, null once every field is read
+    private transient Set<String> materialized;
+    // lazy mode: field values before any read, to tell fields assigned directly from unread ones
+    private transient Map<String, Object> unreadValues;
+
     public void activate(){
         _status = ACTIVE;
     }
@@ -63,6 +85,7 @@ public class LembasEntity extends LembasObject implements Serializable {
     }
 
     public int getStatus() {
+        materialize("_status");
         return _status;
     }
 
@@ -78,6 +101,11 @@ public class LembasEntity extends LembasObject implements Serializable {
         _status = s;
     }
 
+    public long getVersion() {
+        materialize("_version");
+        return _version;
+    }
+
 
     public LembasEntity() {
         this.objectKey =  UUID.randomUUID().toString();
@@ -106,14 +134,15 @@ public class LembasEntity extends LembasObject implements Serializable {
 
     /**
      * copies values from  lembasEntity to this entity. skip objectKey from that.
+     * a lazy entity is fully read first, keeping the fields assigned directly.
      * @param that
      */
     public void copy(LembasEntity that){
 
+        that.materializeAll();
         ArrayList<Field> fields = Lists.newArrayList(that.getClass().getFields());
         for (Field f :fields){
             try {
-
                 int modifiers = f.getModifiers();
                 if (Modifier.isPrivate(modifiers)) continue;
                 if (Modifier.isStatic(modifiers)) continue;
@@ -155,6 +184,7 @@ public class LembasEntity extends LembasObject implements Serializable {
     public void setField(Field f, Object value ) throws IllegalAccessException {
         //f.set(this, value);
         super.setField(f, value);
+        markMaterialized(f.getName());
         Object _value = value;
 
         if ( this.entity != null){
@@ -162,7 +192,7 @@ public class LembasEntity extends LembasObject implements Serializable {
             if ( LembasEntity.class.isAssignableFrom(value.getClass())){
                 try {
                     String _serialized = LembasUtil.serialize(value).toJSONString();
-                    this.entity.setProperty(LEMBAS_PROPERTY_IDENTIFIER + f.getName(), _serialized);
+                    this.entity.setProperty(LEMBAS_PROPERTY_IDENTIFIER + f.getName(), toStoredString(f, _serialized));
 
                     return;
                 } catch (UtilSerializeException e) {
@@ -178,6 +208,11 @@ public class LembasEntity extends LembasObject implements Serializable {
                     _value = ((Enum)value).ordinal();
             }
 
+            // large strings go unindexed, and compressed past the threshold
+            if ( value instanceof String){
+                _value = toStoredString(f, (String) value);
+            }
+
             // poor man's cache
             if ( this.entity.getProperty(f.getName()) != _value)
                 this.entity.setProperty(f.getName(), _value);
@@ -186,7 +221,96 @@ public class LembasEntity extends LembasObject implements Serializable {
     }
 
 
+    /**
+     * Converts a string to the value stored in the entity: the string itself while it can be
+     * indexed, {@code Text} when it is too long to be indexed, and a gzipped {@code Blob}
+     * when it is longer than {@link #COMPRESSION_THRESHOLD} or the field is {@link Compressed}.
+     * @param f
+     * @param value
+     * @return
+     */
+    protected Object toStoredString(Field f, String value){
+        if ( value.length() > COMPRESSION_THRESHOLD || f.isAnnotationPresent(Compressed.class))
+            return new Blob(Utils.gzip(value));
+
+        // a char takes at most 3 bytes, only count bytes when it may matter
+        if ( value.length() * 3 > TEXT_THRESHOLD_BYTES
+                && value.getBytes(Utils.UTF8).length > TEXT_THRESHOLD_BYTES)
+            return new Text(value);
+
+        return value;
+    }
+
+    /**
+     * Reverts {@link #toStoredString(Field, String)} for string and embedded entity fields.
+     * @param f
+     * @param value
+     * @return
+     */
+    protected Object fromStoredValue(Field f, Object value){
+        if ( f.getType().equals(Text.class) || f.getType().equals(Blob.class))
+            return value;
+
+        if ( value instanceof Text)
+            return ((Text) value).getValue();
+
+        if ( value instanceof Blob && Utils.isGzip(((Blob) value).getBytes()))
+            return Utils.gunzip(((Blob) value).getBytes());
+
+        return value;
+    }
+
+    // worst case growth of a string in the JSON of a cached copy, for unicode escapes
+    public static final int MAX_JSON_EXPANSION = 6;
+
+    /**
+     * Estimates the size of the uncompressed values of this entity from their lengths. A cached
+     * copy is at least this large, and at most {@link #MAX_JSON_EXPANSION} times larger.
+     * @return estimated size, 0 if there is no underlying entity
+     */
+    public int estimateSize(){
+        if ( this.entity == null)
+            return 0;
+
+        int size = 0;
+        for (Object value : this.entity.getProperties().values()){
+            size += estimateSize(value);
+        }
+        return size;
+    }
+
+    private static int estimateSize(Object value){
+        if ( value instanceof String)
+            return ((String) value).length();
+        if ( value instanceof Text)
+            return ((Text) value).getValue().length();
+        if ( value instanceof Blob){
+            byte[] bytes = ((Blob) value).getBytes();
+            return Utils.isGzip(bytes) ? Utils.gzipSize(bytes) : bytes.length;
+        }
+        if ( value instanceof ShortBlob)
+            return ((ShortBlob) value).getBytes().length;
+        if ( value instanceof Collection){
+            int size = 0;
+            for (Object element : (Collection) value){
+                size += estimateSize(element);
+            }
+            return size;
+        }
+        return 16;
+    }
+
+    /**
+     * Measures the JSON a cached copy is serialized to, in UTF-8 bytes.
+     * @return exact size of a cached copy, 0 if it cannot be serialized
+     */
+    public int serializedSize(){
+        String json = toJSON();
+        return json == null ? 0 : Utils.utf8Length(json);
+    }
+
     public void readField(Field f, Object value) throws IllegalAccessException {
+        value = fromStoredValue(f, value);
         if ( f.getType().isEnum()){
 
             Class z = f.getType();
@@ -260,35 +384,159 @@ public class LembasEntity extends LembasObject implements Serializable {
         //this.objectKey = entity.getKey().getName();
         this.objectKey = KeyFactory.keyToString(entity.getKey());
 
-        Method[] methods = this.getClass().getMethods();
+        EntitySchema schema = EntitySchema.of(this.getClass());
+
+        for (Map.Entry<String, Object> property : this.entity.getProperties().entrySet()){
+            // removed, renamed and unknown properties are resolved once per class
+            EntitySchema.Binding binding = schema.binding(property.getKey());
+            if ( binding == null)
+                continue;
+
+            readProperty(binding, property.getValue());
+        }
+    }
+
+    /**
+     * Keeps the entity and reads each field from it only on first access, through
+     * {@link #field(String)} or {@link #materialize(String)}. Getters of wide entities
+     * loaded in large queries should read their fields that way.
+     *
+     * A public field assigned directly before it was read keeps the assigned value. Assigning
+     * the value the field held before loading can't be told from not assigning it, and is
+     * replaced by the stored value; use {@link #setField(String, Object)} for that.
+     * @param entity
+     */
+    protected void setEntityLazily(Entity entity){
+        this.entity = entity;
+        this.objectKey = KeyFactory.keyToString(entity.getKey());
 
-        for (String fieldName : this.entity.getProperties().keySet()){
+        HashMap<String, Object> values = new HashMap<>();
+        for (Field f : EntitySchema.of(this.getClass()).fields()){
             try {
-                Object value = this.entity.getProperty(fieldName);
+                values.put(f.getName(), f.get(this));
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        this.unreadValues = values;
+        this.materialized = new HashSet<>();
+    }
 
-                // reading lembas identifier
-                if ( fieldName.startsWith(LEMBAS_PROPERTY_IDENTIFIER) ){
-                    fieldName = fieldName.substring(2);
-                    Field f = this.getClass().getField(fieldName);
-                    setLembasField(f, value);
-                    continue;
-                }
+    // true if the field no longer holds its value from before loading
+    private boolean isAssigned(Field f){
+        if ( unreadValues == null || !unreadValues.containsKey(f.getName()))
+            return false;
+        try {
+            Object unread = unreadValues.get(f.getName());
+            Object current = f.get(this);
+            if ( f.getType().isPrimitive())
+                return !current.equals(unread);
+            return current != unread;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
 
-                Field f = this.getClass().getField(fieldName);
-                boolean consumed = setupFieldWithMethod(fieldName, value, methods);
+    private void readProperty(EntitySchema.Binding binding, Object storedValue){
+        try {
+            Field f = binding.field;
+            Object value = fromStoredValue(f, binding.convert(storedValue));
 
-                if (!consumed) {
-                    //f.set(this, value);
-                    readField(f,value);
-                }
+            // reading lembas identifier
+            if ( binding.embedded){
+                setLembasField(f, value);
+                return;
+            }
 
+            boolean consumed = setupFieldWithMethod(binding.fieldName, value, binding.setters);
 
-            } catch (NoSuchFieldException e) {
-                logger.info("no such field, will skip:"+fieldName);
-            } catch (IllegalAccessException | InvocationTargetException e) {
-                e.printStackTrace();
+            if (!consumed) {
+                //f.set(this, value);
+                readField(f,value);
+            }
+
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a field from the entity if it was loaded lazily and the field is not read yet.
+     * @param fieldName
+     */
+    public synchronized void materialize(String fieldName){
+        if ( materialized == null || materialized.contains(fieldName))
+            return;
+
+        EntitySchema schema = EntitySchema.of(this.getClass());
+        Field f = schema.field(fieldName);
+        if ( f != null && isAssigned(f)){
+            materialized.add(fieldName);
+            return;
+        }
+        for (String storedName : schema.storedNames(fieldName)){
+            if ( this.entity.hasProperty(storedName)){
+                EntitySchema.Binding binding = schema.binding(storedName);
+                if ( binding != null)
+                    readProperty(binding, this.entity.getProperty(storedName));
+                break;
             }
         }
+        materialized.add(fieldName);
+    }
+
+    /**
+     * Reads every field not read yet, ending lazy mode.
+     */
+    public synchronized void materializeAll(){
+        if ( materialized == null)
+            return;
+
+        EntitySchema schema = EntitySchema.of(this.getClass());
+        for (Map.Entry<String, Object> property : this.entity.getProperties().entrySet()){
+            EntitySchema.Binding binding = schema.binding(property.getKey());
+            if ( binding != null && !materialized.contains(binding.fieldName) && !isAssigned(binding.field))
+                readProperty(binding, property.getValue());
+        }
+        materialized = null;
+        unreadValues = null;
+    }
+
+    /**
+     * @param fieldName
+     * @return false only for fields of a lazy entity that were not read yet
+     */
+    public synchronized boolean isMaterialized(String fieldName){
+        return materialized == null || materialized.contains(fieldName);
+    }
+
+    /**
+     * @return names of the fields read so far, null if the entity was not loaded lazily or is fully read
+     */
+    public synchronized Set<String> getMaterializedFields(){
+        return materialized == null ? null : Collections.unmodifiableSet(new HashSet<>(materialized));
+    }
+
+    private synchronized void markMaterialized(String fieldName){
+        if ( materialized != null)
+            materialized.add(fieldName);
+    }
+
+    /**
+     * Returns the value of a field, materializing it first.
+     * @param fieldName
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected <V> V field(String fieldName){
+        materialize(fieldName);
+        Field f = EntitySchema.of(this.getClass()).field(fieldName);
+        Utils.assertTrue(f != null, "no such field:" + fieldName);
+        try {
+            return (V) f.get(this);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     public Entity getEntity() {
@@ -332,6 +580,7 @@ public class LembasEntity extends LembasObject implements Serializable {
     }
 
     public String toJSON() {
+        materializeAll();
         try {
             return LembasUtil.serialize(this, false).toJSONString();
         } catch (UtilSerializeException e) {
@@ -348,6 +597,7 @@ public class LembasEntity extends LembasObject implements Serializable {
     private void writeObject(java.io.ObjectOutputStream out)
             throws IOException {
 
+        materializeAll();
         try {
             org.json.simple.JSONObject result = LembasUtil.serialize(this, false);
             String jsonString = result.toJSONString();
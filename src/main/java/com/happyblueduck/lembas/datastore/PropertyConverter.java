@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+/**
+ * Converts a stored property value of an old type to the type of its current field.
+ * Converters need a public no-arg constructor, and must return values already of the
+ * current type unchanged, since migrated and not yet migrated entities are read alike.
+ */
+public interface PropertyConverter {
+
+    /**
+     * @param storedValue the value read from the com.happyblueduck.lembas.datastore entity, may be null
+     * @return the value to read into the field
+     */
+    Object convert(Object storedValue);
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.Entity;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Which entities of a kind a {@link PurgeTask} removes: entities with one of the given
+ * {@code _status} values, optionally only once a date property is older than a maximum age.
+ *
+ * <pre>
+ *     new PurgePolicy(LembasEntity.ARCHIVED, LembasEntity.INACTIVE)
+ *             .olderThan("updated", 30L * 24 * 60 * 60 * 1000)
+ *             .batchSize(200)
+ *             .throttle(250);
+ * </pre>
+ *
+ * Filtering on both status and age needs a composite index on {@code _status} and the
+ * date property.
+ */
+public class PurgePolicy {
+
+    public static final String STATUS_PROPERTY = "_status";
+
+    final int[] statuses;
+    String ageProperty = null;
+    long maxAgeMillis = 0;
+    int batchSize = 100;
+    long throttleMillis = 100;
+
+    /**
+     * @param statuses status values of the entities to remove
+     */
+    public PurgePolicy(int... statuses) {
+        Utils.assertTrue(statuses.length > 0, "at least one status is required");
+        this.statuses = Arrays.copyOf(statuses, statuses.length);
+    }
+
+    /**
+     * Only removes entities whose date property is older than {@code maxAgeMillis}.
+     */
+    public PurgePolicy olderThan(String ageProperty, long maxAgeMillis) {
+        Utils.assertTrue(ageProperty != null, "ageProperty cannot be null");
+        this.ageProperty = ageProperty;
+        this.maxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * @param batchSize keys deleted per batch
+     */
+    public PurgePolicy batchSize(int batchSize) {
+        Utils.assertTrue(batchSize > 0 && batchSize <= 500, "batchSize must be between 1 and 500");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param throttleMillis pause between batches
+     */
+    public PurgePolicy throttle(long throttleMillis) {
+        this.throttleMillis = throttleMillis;
+        return this;
+    }
+
+    /**
+     * Checks a stored entity against the policy, to re-check query results before deleting.
+     *
+     * @param entity the stored entity
+     * @param cutoff entities older than this are removed, ignored without an age property
+     * @return true if the entity should be removed
+     */
+    boolean matches(Entity entity, Date cutoff) {
+        Object status = entity.getProperty(STATUS_PROPERTY);
+        if ( !(status instanceof Number)){
+            return false;
+        }
+        boolean matched = false;
+        for ( int s : statuses){
+            matched |= ((Number) status).longValue() == s;
+        }
+        if ( !matched || ageProperty == null){
+            return matched;
+        }
+        Object age = entity.getProperty(ageProperty);
+        return age instanceof Date && ((Date) age).before(cutoff);
+    }
+
+    @Override
+    public String toString() {
+        return STATUS_PROPERTY + " in " + Arrays.toString(statuses)
+                + (ageProperty == null ? "" : " and " + ageProperty + " older than " + maxAgeMillis + "ms");
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.*;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+
+/**
+ * Resumable removal of the entities of a kind matched by a {@link PurgePolicy}. Candidates
+ * are found with keys-only cursor queries, one status at a time, in bounded batches with a
+ * pause in between. Query results are eventually consistent, so every batch is read again
+ * in one transaction per entity group, and only entities still matching the policy are
+ * deleted. Declared aggregates are updated in the same, then cross group, transaction.
+ * Deleted entities are removed from memcache in bulk. The age cutoff is fixed when the purge
+ * starts. The returned {@link Progress} can be kept as a string between task queue runs,
+ * so the purge can run continuously in the background.
+ *
+ * <pre>
+ *     PurgeTask&lt;Order&gt; purge = new PurgeTask&lt;&gt;(orderManager, policy);
+ *     PurgeTask.Progress progress = purge.run(PurgeTask.Progress.parse(request.getParameter("progress")), 60 * 1000);
+ *     if ( !progress.isDone())
+ *         queue.add(TaskOptions.Builder.withUrl("/purge").param("progress", progress.toString()));
+ * </pre>
+ *
+ * @param <T> type extends {@code LembasEntity}
+ */
+public class PurgeTask<T extends LembasEntity> {
+    private static final Logger logger =
+            Logger.getLogger(PurgeTask.class.getCanonicalName());
+
+    // attempts per entity group before its candidates are left for the next purge
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final EntityManager<T> manager;
+    private final PurgePolicy policy;
+
+    public PurgeTask(EntityManager<T> manager, PurgePolicy policy) {
+        Utils.assertTrue(manager != null, "manager cannot be null");
+        Utils.assertTrue(policy != null, "policy cannot be null");
+        this.manager = manager;
+        this.policy = policy;
+    }
+
+    /**
+     * Deletes batches until the purge is done or the time budget is spent.
+     *
+     * @param progress where to continue, null to start over
+     * @param budgetMillis time after which no new batch is started
+     * @return where to continue
+     */
+    public Progress run(Progress progress, long budgetMillis) {
+        long deadline = System.currentTimeMillis() + budgetMillis;
+        progress = start(progress);
+
+        while ( !progress.isDone()){
+            progress = runBatch(progress);
+            if ( progress.isDone() || System.currentTimeMillis() + policy.throttleMillis >= deadline){
+                break;
+            }
+            try {
+                Thread.sleep(policy.throttleMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        logger.info("purged " + progress.deleted + " " + manager.getKind() + " (" + policy + ")"
+                + (progress.isDone() ? ", done" : ""));
+        return progress;
+    }
+
+    /**
+     * Deletes one batch of candidates.
+     *
+     * @param progress where to continue, null to start over
+     * @return where to continue
+     */
+    public Progress runBatch(Progress progress) {
+        progress = start(progress);
+        if ( progress.isDone()){
+            return progress;
+        }
+
+        DatastoreService ds = getDatastoreService();
+        AggregateStore aggregates = manager.getAggregates();
+        Date cutoff = new Date(progress.cutoff);
+
+        FetchOptions options = FetchOptions.Builder.withLimit(policy.batchSize);
+        if ( progress.cursor != null){
+            options.startCursor(Cursor.fromWebSafeString(progress.cursor));
+        }
+
+        Query query = candidates(policy.statuses[progress.statusIndex], cutoff).setKeysOnly();
+        QueryResultList<Entity> page = ds.prepare(query).asQueryResultList(options);
+
+        LinkedHashMap<Key, List<Key>> groups = new LinkedHashMap<>();
+        for ( Entity entity : page){
+            Key root = entity.getKey();
+            while ( root.getParent() != null){
+                root = root.getParent();
+            }
+            List<Key> keys = groups.get(root);
+            if ( keys == null){
+                keys = new ArrayList<>();
+                groups.put(root, keys);
+            }
+            keys.add(entity.getKey());
+        }
+
+        ArrayList<String> cacheKeys = new ArrayList<>(page.size());
+        HashSet<String> changedGroups = new HashSet<>();
+        try {
+            for ( List<Key> keys : groups.values()){
+                for ( Key key : deleteMatching(ds, keys, cutoff, aggregates, changedGroups)){
+                    cacheKeys.add(KeyFactory.keyToString(key));
+                }
+            }
+        } finally {
+            if ( !cacheKeys.isEmpty()){
+                manager.removeAllFromCache(cacheKeys);
+                aggregates.invalidate(changedGroups);
+            }
+        }
+
+        Progress next = new Progress(progress);
+        next.deleted += cacheKeys.size();
+        if ( page.size() < policy.batchSize){
+            // this status is done, continue with the next one
+            next.statusIndex++;
+            next.cursor = null;
+        } else {
+            next.cursor = page.getCursor().toWebSafeString();
+        }
+        next.done = next.statusIndex >= policy.statuses.length;
+        return next;
+    }
+
+    /**
+     * Reads the candidates of one entity group in a transaction and deletes the ones that
+     * still match the policy. For kinds that declare aggregates the transaction is a cross
+     * group one, and the shards are updated in it together with the delete.
+     *
+     * @param changedGroups collects the aggregate groups changed by committed deletes
+     * @return the deleted keys, empty if the group kept conflicting
+     */
+    private List<Key> deleteMatching(DatastoreService ds, List<Key> keys, Date cutoff,
+                                     AggregateStore aggregates, Set<String> changedGroups) {
+        for ( int attempt = 1; ; attempt++){
+            Transaction txn = aggregates.isEmpty()
+                    ? ds.beginTransaction()
+                    : ds.beginTransaction(TransactionOptions.Builder.withXG(true));
+            try {
+                ArrayList<Key> deleted = new ArrayList<>(keys.size());
+                HashMap<String, AggregateStore.Delta> deltas = new HashMap<>();
+                for ( Entity entity : ds.get(txn, keys).values()){
+                    if ( policy.matches(entity, cutoff)){
+                        deleted.add(entity.getKey());
+                        aggregates.collect(deltas, entity, null);
+                    }
+                }
+                if ( deleted.isEmpty()){
+                    return deleted;
+                }
+                ds.delete(txn, deleted);
+                Set<String> changed = aggregates.apply(ds, txn, deltas);
+                txn.commit();
+                changedGroups.addAll(changed);
+                return deleted;
+            } catch (ConcurrentModificationException e) {
+                if ( attempt >= MAX_ATTEMPTS){
+                    logger.warn("skipping purge of " + keys + " after " + attempt + " attempts");
+                    return Collections.emptyList();
+                }
+            } finally {
+                if ( txn.isActive()){
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    // fixes the age cutoff of a new purge, it stays the same for all its batches
+    private Progress start(Progress progress) {
+        if ( progress != null && progress.cutoff >= 0){
+            return progress;
+        }
+        Progress started = progress == null ? new Progress() : new Progress(progress);
+        started.cutoff = System.currentTimeMillis() - policy.maxAgeMillis;
+        return started;
+    }
+
+    private Query candidates(int status, Date cutoff) {
+        Query.Filter filter = new Query.FilterPredicate(PurgePolicy.STATUS_PROPERTY, Query.FilterOperator.EQUAL, status);
+        if ( policy.ageProperty != null){
+            filter = Query.CompositeFilterOperator.and(filter,
+                    new Query.FilterPredicate(policy.ageProperty, Query.FilterOperator.LESS_THAN, cutoff));
+        }
+        return manager.query().setFilter(filter);
+    }
+
+    /**
+     * Position of a purge: the status being purged, the cursor within it, the age cutoff
+     * fixed at the start and the number of entities deleted so far.
+     */
+    public static class Progress {
+        int statusIndex = 0;
+        String cursor = null;
+        long deleted = 0;
+        // millis, negative until the purge starts
+        long cutoff = -1;
+        boolean done = false;
+
+        public Progress() {
+        }
+
+        private Progress(Progress that) {
+            this.statusIndex = that.statusIndex;
+            this.cursor = that.cursor;
+            this.deleted = that.deleted;
+            this.cutoff = that.cutoff;
+            this.done = that.done;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public long getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * @param value a string created by {@link #toString()}, may be null
+         * @return the progress, a new one if value is null or empty
+         */
+        public static Progress parse(String value) {
+            Progress progress = new Progress();
+            if ( value == null || value.isEmpty()){
+                return progress;
+            }
+            String[] parts = value.split(":", 5);
+            Utils.assertTrue(parts.length == 5, "invalid purge progress:" + value);
+            progress.done = "done".equals(parts[0]);
+            progress.statusIndex = Integer.parseInt(parts[1]);
+            progress.deleted = Long.parseLong(parts[2]);
+            progress.cutoff = parts[3].isEmpty() ? -1 : Long.parseLong(parts[3]);
+            progress.cursor = parts[4].isEmpty() ? null : parts[4];
+            return progress;
+        }
+
+        // state:statusIndex:deleted:cutoff:cursor
+        @Override
+        public String toString() {
+            return (done ? "done" : "running") + ":" + statusIndex + ":" + deleted
+                    + ":" + (cutoff < 0 ? "" : String.valueOf(cutoff))
+                    + ":" + (cursor == null ? "" : cursor);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Normalized form of a query without filter values, e.g.
+ * {@code Order[ancestor] _status=? created>? sort:-created limit:20}. Queries that differ
+ * only in their values have the same shape. Used to name {@link QueryTemplate}s and to
+ * group entries of the {@link SlowOperationLog}.
+ */
+final class QueryShape {
+
+    private final StringBuilder sb;
+    private int sorts = 0;
+
+    QueryShape(String kind) {
+        this.sb = new StringBuilder(kind);
+    }
+
+    /**
+     * @param query com.happyblueduck.lembas.datastore query object.
+     * @return the shape of the query
+     */
+    static String of(Query query) {
+        QueryShape shape = new QueryShape(query.getKind());
+        if ( query.getAncestor() != null){
+            shape.ancestor();
+        }
+        if ( query.isKeysOnly()){
+            shape.keysOnly();
+        }
+        shape.filter(query.getFilter());
+        for ( Query.SortPredicate sort : query.getSortPredicates()){
+            shape.sort(sort.getPropertyName(), sort.getDirection());
+        }
+        return shape.toString();
+    }
+
+    QueryShape ancestor() {
+        sb.append("[ancestor]");
+        return this;
+    }
+
+    QueryShape keysOnly() {
+        sb.append("[keys]");
+        return this;
+    }
+
+    QueryShape filter(String property, Query.FilterOperator operator) {
+        sb.append(' ').append(property).append(operator).append('?');
+        return this;
+    }
+
+    QueryShape filter(Query.Filter filter) {
+        if ( filter instanceof Query.FilterPredicate){
+            Query.FilterPredicate predicate = (Query.FilterPredicate) filter;
+            filter(predicate.getPropertyName(), predicate.getOperator());
+        } else if ( filter instanceof Query.CompositeFilter){
+            Query.CompositeFilter composite = (Query.CompositeFilter) filter;
+            if ( composite.getOperator() == Query.CompositeFilterOperator.OR){
+                sb.append(" OR(");
+            }
+            for ( Query.Filter subFilter : composite.getSubFilters()){
+                filter(subFilter);
+            }
+            if ( composite.getOperator() == Query.CompositeFilterOperator.OR){
+                sb.append(" )");
+            }
+        }
+        return this;
+    }
+
+    QueryShape sort(String property, Query.SortDirection direction) {
+        sb.append(sorts++ == 0 ? " sort:" : ",")
+                .append(direction == Query.SortDirection.DESCENDING ? "-" : "")
+                .append(property);
+        return this;
+    }
+
+    QueryShape limit(int limit) {
+        sb.append(" limit:").append(limit);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
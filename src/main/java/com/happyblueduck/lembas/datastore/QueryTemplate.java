@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A query shape defined once and executed with different parameter values. The ancestor,
+ * filter properties and operators, sorts and limit are fixed when the template is built,
+ * only the values are bound per call, without filter maps or {@code QueryFilterValue}s.
+ * Templates are immutable and can be kept in static fields.
+ *
+ * <pre>
+ *     static final QueryTemplate&lt;Order&gt; OPEN_ORDERS = new EntityManager&lt;&gt;(Order.class).template()
+ *             .withAncestor()
+ *             .filter("_status")
+ *             .filter("created", Query.FilterOperator.GREATER_THAN)
+ *             .sort("created", Query.SortDirection.DESCENDING)
+ *             .limit(20)
+ *             .build();
+ *
+ *     ArrayList&lt;Order&gt; orders = OPEN_ORDERS.executeWithParent(customer, LembasEntity.ACTIVE, since);
+ * </pre>
+ *
+ * @param <T> type extends {@code LembasEntity}
+ */
+public class QueryTemplate<T extends LembasEntity> {
+
+    private final EntityManager<T> manager;
+    private final boolean ancestor;
+    private final String[] properties;
+    private final Query.FilterOperator[] operators;
+    private final String[] sortProperties;
+    private final Query.SortDirection[] sortDirections;
+    private final int limit;
+    private final CachePolicy cachePolicy;
+    private final String shape;
+
+    private QueryTemplate(Builder<T> builder) {
+        this.manager = builder.manager;
+        this.ancestor = builder.ancestor;
+        this.properties = builder.properties.toArray(new String[builder.properties.size()]);
+        this.operators = builder.operators.toArray(new Query.FilterOperator[builder.operators.size()]);
+        this.sortProperties = builder.sortProperties.toArray(new String[builder.sortProperties.size()]);
+        this.sortDirections = builder.sortDirections.toArray(new Query.SortDirection[builder.sortDirections.size()]);
+        this.limit = builder.limit;
+        this.cachePolicy = builder.cachePolicy;
+        this.shape = buildShape();
+    }
+
+    public static <T extends LembasEntity> Builder<T> builder(EntityManager<T> manager) {
+        return new Builder<>(manager);
+    }
+
+    // e.g. Order[ancestor] _status=? created>? sort:-created limit:20
+    private String buildShape() {
+        QueryShape shape = new QueryShape(manager.getKind());
+        if ( ancestor){
+            shape.ancestor();
+        }
+        for ( int i = 0; i < properties.length; i++){
+            shape.filter(properties[i], operators[i]);
+        }
+        for ( int i = 0; i < sortProperties.length; i++){
+            shape.sort(sortProperties[i], sortDirections[i]);
+        }
+        if ( limit >= 0){
+            shape.limit(limit);
+        }
+        return shape.toString();
+    }
+
+    /**
+     * @return the normalized shape of the query, without parameter values
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * Builds a key identifying the bound query, for caching results.
+     *
+     * @param parent the ancestor, null if the template has none
+     * @param values filter values in the order of the filters
+     * @return the shape followed by the ancestor and values
+     */
+    public String cacheKey(LembasEntity parent, Object... values) {
+        StringBuilder sb = new StringBuilder(shape);
+        if ( ancestor){
+            sb.append('|').append(parent.getObjectKey());
+        }
+        for ( Object value : values){
+            sb.append('|').append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Binds values to the template.
+     *
+     * @param parent the ancestor, null if the template has none
+     * @param values filter values in the order of the filters
+     * @return a new query
+     */
+    public Query bind(LembasEntity parent, Object... values) {
+        Utils.assertTrue(values.length == properties.length,
+                "expected " + properties.length + " values for " + shape);
+        Utils.assertTrue(!ancestor || parent != null, "ancestor cannot be null for " + shape);
+
+        Query query = new Query(manager.getKind());
+        if ( ancestor){
+            query.setAncestor(parent.getKey());
+        }
+
+        if ( properties.length == 1){
+            query.setFilter(new Query.FilterPredicate(properties[0], operators[0], values[0]));
+        } else if ( properties.length > 1){
+            Query.Filter[] filters = new Query.Filter[properties.length];
+            for ( int i = 0; i < properties.length; i++){
+                filters[i] = new Query.FilterPredicate(properties[i], operators[i], values[i]);
+            }
+            query.setFilter(new Query.CompositeFilter(Query.CompositeFilterOperator.AND, Arrays.asList(filters)));
+        }
+
+        for ( int i = 0; i < sortProperties.length; i++){
+            query.addSort(sortProperties[i], sortDirections[i]);
+        }
+        return query;
+    }
+
+    public FetchOptions fetchOptions() {
+        return limit >= 0 ? FetchOptions.Builder.withLimit(limit) : FetchOptions.Builder.withDefaults();
+    }
+
+    public ArrayList<T> execute(Object... values) {
+        return executeWithParent(null, values);
+    }
+
+    public ArrayList<T> executeWithParent(LembasEntity parent, Object... values) {
+        Query query = bind(parent, values);
+        if ( cachePolicy == null){
+            return manager.queryEntities(query, fetchOptions());
+        }
+        return manager.queryEntities(query, fetchOptions(), cachePolicy);
+    }
+
+    public T first(Object... values) {
+        return firstWithParent(null, values);
+    }
+
+    public T firstWithParent(LembasEntity parent, Object... values) {
+        FetchOptions options = FetchOptions.Builder.withLimit(1);
+        Query query = bind(parent, values);
+        ArrayList<T> result = cachePolicy == null
+                ? manager.queryEntities(query, options)
+                : manager.queryEntities(query, options, cachePolicy);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    @Override
+    public String toString() {
+        return shape;
+    }
+
+    /**
+     * Collects the shape of a {@code QueryTemplate}.
+     *
+     * @param <T> type extends {@code LembasEntity}
+     */
+    public static class Builder<T extends LembasEntity> {
+        private final EntityManager<T> manager;
+        private boolean ancestor = false;
+        private final ArrayList<String> properties = new ArrayList<>();
+        private final ArrayList<Query.FilterOperator> operators = new ArrayList<>();
+        private final ArrayList<String> sortProperties = new ArrayList<>();
+        private final ArrayList<Query.SortDirection> sortDirections = new ArrayList<>();
+        private int limit = -1;
+        private CachePolicy cachePolicy = null;
+
+        private Builder(EntityManager<T> manager) {
+            Utils.assertTrue(manager != null, "manager cannot be null");
+            this.manager = manager;
+        }
+
+        /** the query is bound to a parent entity on every call */
+        public Builder<T> withAncestor() {
+            this.ancestor = true;
+            return this;
+        }
+
+        public Builder<T> filter(String property) {
+            return filter(property, Query.FilterOperator.EQUAL);
+        }
+
+        public Builder<T> filter(String property, Query.FilterOperator operator) {
+            properties.add(property);
+            operators.add(operator);
+            return this;
+        }
+
+        public Builder<T> sort(String property, Query.SortDirection direction) {
+            sortProperties.add(property);
+            sortDirections.add(direction);
+            return this;
+        }
+
+        public Builder<T> limit(int limit) {
+            Utils.assertTrue(limit >= 0, "limit cannot be negative");
+            this.limit = limit;
+            return this;
+        }
+
+        /** overrides the query cache policy of the manager */
+        public Builder<T> cachePolicy(CachePolicy cachePolicy) {
+            this.cachePolicy = cachePolicy;
+            return this;
+        }
+
+        public QueryTemplate<T> build() {
+            return new QueryTemplate<>(this);
+        }
+    }
+}
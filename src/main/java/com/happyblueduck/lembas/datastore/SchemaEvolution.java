@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how stored properties of an entity class map to its current fields after
+ * fields were renamed, removed or changed type. The mapping is resolved once per class
+ * by {@link EntitySchema}, {@link SchemaMigration} rewrites old entities to it.
+ *
+ * <pre>
+ * {@literal @}SchemaEvolution(
+ *     renamed = {{@literal @}SchemaEvolution.Renamed(from = "title", to = "name")},
+ *     removed = {"legacyFlag"},
+ *     converted = {{@literal @}SchemaEvolution.Converted(property = "price", converter = CentsConverter.class)})
+ * public class Product extends LembasEntity { ... }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface SchemaEvolution {
+
+    Renamed[] renamed() default {};
+
+    /** names of properties that no longer have a field */
+    String[] removed() default {};
+
+    Converted[] converted() default {};
+
+    /**
+     * A property stored under {@code from} that is now read into field {@code to}.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({})
+    @interface Renamed {
+        String from();
+        String to();
+    }
+
+    /**
+     * A property whose stored values are converted before being read into its field.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({})
+    @interface Converted {
+        /** the current field name */
+        String property();
+        Class<? extends PropertyConverter> converter();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.*;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+
+/**
+ * Resumable background migration that rewrites stored entities of a kind to the current
+ * {@link EntitySchema}, so renamed and removed properties disappear from storage.
+ * Every call migrates one page and returns the cursor to continue from, which the caller
+ * keeps between task queue runs. The entities of a page that need migration are grouped by
+ * entity group, and each group is read again, migrated and written with one batch get and
+ * one batch put in a transaction, so a concurrent write is migrated instead of being
+ * overwritten.
+ *
+ * <pre>
+ *     SchemaMigration&lt;Product&gt; migration = new SchemaMigration&lt;&gt;(productManager, 200);
+ *     String cursor = migration.migrateBatch(request.getParameter("cursor"));
+ *     if ( cursor != null)
+ *         queue.add(TaskOptions.Builder.withUrl("/migrate").param("cursor", cursor));
+ * </pre>
+ *
+ * @param <T> type extends {@code LembasEntity}
+ */
+public class SchemaMigration<T extends LembasEntity> {
+    private static final Logger logger =
+            Logger.getLogger(SchemaMigration.class.getCanonicalName());
+
+    // attempts per entity group before the page is given up on
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final EntityManager<T> manager;
+    private final int batchSize;
+    private boolean removeUnknown = false;
+
+    private long scanned = 0;
+    private long migrated = 0;
+
+    public SchemaMigration(EntityManager<T> manager, int batchSize) {
+        Utils.assertTrue(batchSize > 0, "batchSize must be positive");
+        this.manager = manager;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Also deletes properties that have no field and are not declared removed, such as
+     * values written with {@code LembasEntity.setProperty}. Off by default.
+     *
+     * @param removeUnknown delete unknown properties
+     */
+    public void setRemoveUnknown(boolean removeUnknown) {
+        this.removeUnknown = removeUnknown;
+    }
+
+    /**
+     * Migrates one page of entities. The page is read with a query, and the entities that
+     * need migration are read again, migrated and put in one transaction per entity group.
+     * Throws {@code ConcurrentModificationException} if a group keeps conflicting, so
+     * the task is retried from the same cursor.
+     *
+     * @param cursor web safe cursor returned by the previous call, null to start over
+     * @return the cursor to continue from, null when the kind is fully migrated
+     */
+    public String migrateBatch(String cursor) {
+        FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+        if ( cursor != null){
+            options.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+
+        DatastoreService ds = getDatastoreService();
+        QueryResultList<Entity> page = ds.prepare(manager.query()).asQueryResultList(options);
+
+        EntitySchema schema = EntitySchema.of(manager.getEntityClass());
+        // the query result may be stale, only a migration candidate
+        LinkedHashMap<Key, List<Key>> groups = new LinkedHashMap<>();
+        for ( Entity entity : page){
+            if ( !schema.migrate(entity, removeUnknown)){
+                continue;
+            }
+            Key root = entity.getKey();
+            while ( root.getParent() != null){
+                root = root.getParent();
+            }
+            List<Key> keys = groups.get(root);
+            if ( keys == null){
+                keys = new ArrayList<>();
+                groups.put(root, keys);
+            }
+            keys.add(entity.getKey());
+        }
+
+        ArrayList<String> cacheKeys = new ArrayList<>();
+        try {
+            for ( List<Key> keys : groups.values()){
+                for ( Key key : migrateGroup(ds, schema, keys)){
+                    cacheKeys.add(KeyFactory.keyToString(key));
+                }
+            }
+        } finally {
+            if ( !cacheKeys.isEmpty()){
+                manager.removeAllFromCache(cacheKeys);
+            }
+        }
+
+        scanned += page.size();
+        migrated += cacheKeys.size();
+        logger.info("migrated " + cacheKeys.size() + "/" + page.size() + " " + manager.getKind());
+
+        if ( page.size() < batchSize){
+            return null;
+        }
+        return page.getCursor().toWebSafeString();
+    }
+
+    /**
+     * @return the migrated keys; entities that are gone or already up to date are skipped
+     */
+    private List<Key> migrateGroup(DatastoreService ds, EntitySchema schema, List<Key> keys) {
+        for ( int attempt = 1; ; attempt++){
+            Transaction txn = ds.beginTransaction();
+            try {
+                ArrayList<Entity> changed = new ArrayList<>(keys.size());
+                for ( Entity entity : ds.get(txn, keys).values()){
+                    if ( schema.migrate(entity, removeUnknown)){
+                        changed.add(entity);
+                    }
+                }
+                ArrayList<Key> migratedKeys = new ArrayList<>(changed.size());
+                if ( changed.isEmpty()){
+                    return migratedKeys;
+                }
+                ds.put(txn, changed);
+                txn.commit();
+                for ( Entity entity : changed){
+                    migratedKeys.add(entity.getKey());
+                }
+                return migratedKeys;
+            } catch (ConcurrentModificationException e) {
+                if ( attempt >= MAX_ATTEMPTS){
+                    logger.warn("giving up migrating " + keys + " after " + attempt + " attempts");
+                    throw e;
+                }
+            } finally {
+                if ( txn.isActive()){
+                    txn.rollback();
+                }
+            }
+        }
+    }
+
+    /**
+     * Migrates pages until the kind is done or {@code maxBatches} pages were processed.
+     *
+     * @param cursor web safe cursor to start from, null to start over
+     * @param maxBatches maximum number of pages
+     * @return the cursor to continue from, null when the kind is fully migrated
+     */
+    public String migrate(String cursor, int maxBatches) {
+        for ( int i = 0; i < maxBatches; i++){
+            cursor = migrateBatch(cursor);
+            if ( cursor == null){
+                break;
+            }
+        }
+        return cursor;
+    }
+
+    public long getScanned() {
+        return scanned;
+    }
+
+    public long getMigrated() {
+        return migrated;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.Query;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Opt-in, sampled recorder of slow {@code EntityManager} operations. A sampled operation
+ * that takes longer than the threshold is kept in a bounded ring buffer with its kind,
+ * normalized query shape, rows fetched, time spent in datastore calls, hydration and
+ * cache writes, and the calling site outside this package.
+ *
+ * Disabled by default; while disabled, or for operations not sampled, {@link #start}
+ * returns null and the operation is not timed at all.
+ */
+public class SlowOperationLog {
+    private static final Logger logger =
+            Logger.getLogger(SlowOperationLog.class.getCanonicalName());
+
+    private static final String PACKAGE = SlowOperationLog.class.getPackage().getName() + ".";
+
+    // 0 while disabled
+    private static volatile int sampleRate = 0;
+    private static volatile long thresholdNanos = 0;
+
+    private static Record[] buffer = new Record[0];
+    private static int next = 0;
+    private static long recorded = 0;
+
+    private SlowOperationLog() {
+    }
+
+    /**
+     * Starts recording.
+     *
+     * @param sampleRate one in {@code sampleRate} operations is timed
+     * @param thresholdMillis operations taking longer are recorded
+     * @param capacity number of records kept, older ones are overwritten
+     */
+    public static synchronized void enable(int sampleRate, long thresholdMillis, int capacity) {
+        Utils.assertTrue(sampleRate > 0, "sampleRate must be positive");
+        Utils.assertTrue(capacity > 0, "capacity must be positive");
+        buffer = new Record[capacity];
+        next = 0;
+        recorded = 0;
+        thresholdNanos = thresholdMillis * 1000000L;
+        SlowOperationLog.sampleRate = sampleRate;
+    }
+
+    public static void disable() {
+        sampleRate = 0;
+    }
+
+    /**
+     * @param operation name of the operation
+     * @param kind entity kind
+     * @return a trace to fill in, null if the operation is not sampled
+     */
+    public static Trace start(String operation, String kind) {
+        int rate = sampleRate;
+        if ( rate == 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)){
+            return null;
+        }
+        return new Trace(operation, kind);
+    }
+
+    /**
+     * @return the kept records, oldest first
+     */
+    public static synchronized List<Record> dump() {
+        ArrayList<Record> result = new ArrayList<>(buffer.length);
+        for ( int i = 0; i < buffer.length; i++){
+            Record record = buffer[(next + i) % buffer.length];
+            if ( record != null){
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of slow operations recorded since enabled, including overwritten ones
+     */
+    public static synchronized long getRecorded() {
+        return recorded;
+    }
+
+    public static synchronized void clear() {
+        buffer = new Record[buffer.length];
+        next = 0;
+    }
+
+    private static synchronized void add(Record record) {
+        if ( buffer.length == 0){
+            return;
+        }
+        buffer[next] = record;
+        next = (next + 1) % buffer.length;
+        recorded++;
+    }
+
+    // first frame outside this package
+    private static String callingSite() {
+        for ( StackTraceElement element : new Throwable().getStackTrace()){
+            if ( !element.getClassName().startsWith(PACKAGE)){
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    /**
+     * Times one sampled operation. Phases are timed by the caller with {@link System#nanoTime()}.
+     * Chunks hydrated in parallel add their phases from several threads, so hydration and
+     * cache time are then summed over the threads and can exceed the total.
+     */
+    public static class Trace {
+        private final String operation;
+        private final String kind;
+        private final long start = System.nanoTime();
+        private Query query;
+        private int rows;
+        private long rpcNanos;
+        private long hydrationNanos;
+        private long cacheNanos;
+
+        private Trace(String operation, String kind) {
+            this.operation = operation;
+            this.kind = kind;
+        }
+
+        public void query(Query query) {
+            this.query = query;
+        }
+
+        public synchronized void rows(int rows) {
+            this.rows += rows;
+        }
+
+        public synchronized void rpc(long nanos) {
+            this.rpcNanos += nanos;
+        }
+
+        public synchronized void hydration(long nanos) {
+            this.hydrationNanos += nanos;
+        }
+
+        public synchronized void cache(long nanos) {
+            this.cacheNanos += nanos;
+        }
+
+        /**
+         * Ends the operation, recording it if it was slow.
+         */
+        public synchronized void finish() {
+            long total = System.nanoTime() - start;
+            if ( total < thresholdNanos){
+                return;
+            }
+
+            Record record = new Record(operation, kind, query == null ? kind : QueryShape.of(query), rows,
+                    total, rpcNanos, hydrationNanos, cacheNanos, callingSite());
+            add(record);
+            logger.warn("slow operation " + record);
+        }
+    }
+
+    /**
+     * One slow operation.
+     */
+    public static class Record {
+        public final Date time = new Date();
+        public final String operation;
+        public final String kind;
+        public final String shape;
+        public final int rows;
+        public final long totalMillis;
+        public final long rpcMillis;
+        public final long hydrationMillis;
+        public final long cacheMillis;
+        public final String caller;
+
+        Record(String operation, String kind, String shape, int rows, long totalNanos,
+               long rpcNanos, long hydrationNanos, long cacheNanos, String caller) {
+            this.operation = operation;
+            this.kind = kind;
+            this.shape = shape;
+            this.rows = rows;
+            this.totalMillis = totalNanos / 1000000L;
+            this.rpcMillis = rpcNanos / 1000000L;
+            this.hydrationMillis = hydrationNanos / 1000000L;
+            this.cacheMillis = cacheNanos / 1000000L;
+            this.caller = caller;
+        }
+
+        @Override
+        public String toString() {
+            return operation + " " + shape + " rows=" + rows + " total=" + totalMillis + "ms"
+                    + " (rpc=" + rpcMillis + "ms hydration=" + hydrationMillis + "ms cache=" + cacheMillis + "ms)"
+                    + " at " + caller;
+        }
+    }
+}
@@ -13,6 +13,16 @@
  */
 package com.happyblueduck.lembas.datastore;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 /**
  * A utility class.
  *
@@ -39,4 +49,129 @@ public final class Utils {
       }
     }
   }
+
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Counts the UTF-8 bytes of a string without encoding it.
+   *
+   * @param value the string to measure.
+   * @return its length in UTF-8 bytes.
+   */
+  public static int utf8Length(CharSequence value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Writes an object with java serialization.
+   *
+   * @param value the object to serialize.
+   * @return the serialized bytes.
+   */
+  public static byte[] serialize(Serializable value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("failed to serialize value", e);
+    }
+  }
+
+  /**
+   * Reads an object written by {@link #serialize(Serializable)}.
+   *
+   * @param bytes the serialized bytes.
+   * @return a new copy of the object.
+   */
+  public static Object deserialize(byte[] bytes) {
+    try {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      Object value = in.readObject();
+      in.close();
+      return value;
+    } catch (IOException | ClassNotFoundException e) {
+      throw new RuntimeException("failed to deserialize value", e);
+    }
+  }
+
+  /**
+   * Compresses a string as UTF-8 with gzip.
+   *
+   * @param value the string to compress.
+   * @return gzipped bytes.
+   */
+  public static byte[] gzip(String value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() / 4 + 32);
+      GZIPOutputStream out = new GZIPOutputStream(bytes);
+      out.write(value.getBytes(UTF8));
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException("failed to compress value", e);
+    }
+  }
+
+  /**
+   * Decompresses bytes created by {@link #gzip(String)}.
+   *
+   * @param compressed gzipped bytes.
+   * @return the original string.
+   */
+  public static String gunzip(byte[] compressed) {
+    try {
+      GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(gzipSize(compressed), 32));
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, read);
+      }
+      in.close();
+      return new String(bytes.toByteArray(), UTF8);
+    } catch (IOException e) {
+      throw new RuntimeException("failed to decompress value", e);
+    }
+  }
+
+  /**
+   * @param bytes the bytes to check.
+   * @return true if the bytes start with the gzip magic number.
+   */
+  public static boolean isGzip(byte[] bytes) {
+    return bytes != null && bytes.length > 18
+        && (bytes[0] & 0xff) == 0x1f && (bytes[1] & 0xff) == 0x8b;
+  }
+
+  /**
+   * Reads the uncompressed size from the gzip trailer without decompressing.
+   *
+   * @param compressed gzipped bytes.
+   * @return the uncompressed size in bytes.
+   */
+  public static int gzipSize(byte[] compressed) {
+    int n = compressed.length;
+    return (compressed[n - 4] & 0xff)
+        | (compressed[n - 3] & 0xff) << 8
+        | (compressed[n - 2] & 0xff) << 16
+        | (compressed[n - 1] & 0xff) << 24;
+  }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.dev.HighRepJobPolicy;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AggregateStoreTest {
+
+    @Aggregate(name = "byStatus", groupBy = "_status", sum = "amount", shards = 4)
+    public static class Order extends LembasEntity {
+        public long amount;
+
+        public Order() {
+        }
+
+        public Order(String keyName, int status, long amount) {
+            super(keyName);
+            this._status = status;
+            this.amount = amount;
+        }
+    }
+
+    // high replication, needed for cross group transactions, with every write applied at once
+    public static class ConsistentPolicy implements HighRepJobPolicy {
+        @Override
+        public boolean shouldApplyNewJob(Key entityGroup) {
+            return true;
+        }
+
+        @Override
+        public boolean shouldRollForwardExistingJob(Key entityGroup) {
+            return true;
+        }
+    }
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setAlternateHighRepJobPolicyClass(ConsistentPolicy.class),
+            new LocalMemcacheServiceTestConfig());
+
+    private EntityManager<Order> manager;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        manager = new EntityManager<>(Order.class);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void countsAndSumsWrites() {
+        manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+        manager.upsertEntity(new Order("b", LembasEntity.ACTIVE, 7));
+
+        assertEquals(2, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(12, manager.sum("byStatus", LembasEntity.ACTIVE), 0);
+        assertEquals(0, manager.count("byStatus", LembasEntity.ARCHIVED));
+    }
+
+    @Test
+    public void upsertMovesEntityBetweenGroups() {
+        Order order = manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+        manager.upsertEntity(new Order("b", LembasEntity.ACTIVE, 7));
+        assertEquals(2, manager.count("byStatus", LembasEntity.ACTIVE));
+
+        order._status = LembasEntity.ARCHIVED;
+        order.amount = 3;
+        manager.upsertEntity(order);
+
+        assertEquals(1, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(7, manager.sum("byStatus", LembasEntity.ACTIVE), 0);
+        assertEquals(1, manager.count("byStatus", LembasEntity.ARCHIVED));
+        assertEquals(3, manager.sum("byStatus", LembasEntity.ARCHIVED), 0);
+    }
+
+    @Test
+    public void updateMovesEntityBetweenGroups() {
+        Order order = manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+        assertEquals(1, manager.count("byStatus", LembasEntity.ACTIVE));
+
+        manager.update(order.getKey(), new Function<Order, Order>() {
+            @Override
+            public Order apply(Order current) {
+                current._status = LembasEntity.ARCHIVED;
+                return current;
+            }
+        });
+
+        assertEquals(0, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(1, manager.count("byStatus", LembasEntity.ARCHIVED));
+        assertEquals(5, manager.sum("byStatus", LembasEntity.ARCHIVED), 0);
+    }
+
+    @Test
+    public void deleteRemovesEntityFromGroup() {
+        Order order = manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+        manager.upsertEntity(new Order("b", LembasEntity.ACTIVE, 7));
+        assertEquals(2, manager.count("byStatus", LembasEntity.ACTIVE));
+
+        assertNotNull(manager.deleteEntity(order));
+
+        assertEquals(1, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(7, manager.sum("byStatus", LembasEntity.ACTIVE), 0);
+    }
+
+    @Test
+    public void writesAreCountedInContentionStats() {
+        ContentionStats stats = manager.getContentionStats();
+        long attempts = stats.getAttempts();
+        long commits = stats.getCommits();
+
+        Order order = manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+        manager.deleteEntity(order);
+
+        assertEquals(attempts + 2, stats.getAttempts());
+        assertEquals(commits + 2, stats.getCommits());
+    }
+
+    @Test
+    public void rebuildRecountsStoredEntities() {
+        manager.upsertEntity(new Order("a", LembasEntity.ACTIVE, 5));
+
+        // written around the manager, so the aggregates miss it
+        Entity missed = new Entity("Order", "b");
+        missed.setProperty("_status", (long) LembasEntity.ACTIVE);
+        missed.setProperty("amount", 7L);
+        DatastoreServiceFactory.getDatastoreService().put(missed);
+        assertEquals(1, manager.count("byStatus", LembasEntity.ACTIVE));
+
+        manager.rebuildAggregates();
+
+        assertEquals(2, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(12, manager.sum("byStatus", LembasEntity.ACTIVE), 0);
+    }
+
+    @Test
+    public void shardKeysCoverChangedGroupsOnly() {
+        AggregateStore aggregates = manager.getAggregates();
+        Entity active = new Order("a", LembasEntity.ACTIVE, 5).getEntity();
+        active.setProperty("_status", (long) LembasEntity.ACTIVE);
+        active.setProperty("amount", 5L);
+        Entity archived = active.clone();
+        archived.setProperty("_status", (long) LembasEntity.ARCHIVED);
+
+        Map<String, AggregateStore.Delta> deltas = new HashMap<>();
+        aggregates.collect(deltas, null, active);
+        aggregates.collect(deltas, null, archived);
+        assertEquals(2, aggregates.shardKeys(deltas).size());
+
+        // written and deleted again, nothing to apply
+        deltas.clear();
+        aggregates.collect(deltas, null, active);
+        aggregates.collect(deltas, active, null);
+        assertTrue(aggregates.shardKeys(deltas).isEmpty());
+    }
+
+    @Test
+    public void sessionUpdatesAggregatesInCrossGroupTransaction() {
+        EntitySession session = new EntitySession(true);
+        session.upsert(manager, new Order("a", LembasEntity.ACTIVE, 5));
+        session.upsert(manager, new Order("b", LembasEntity.ARCHIVED, 7));
+        session.commit();
+
+        assertEquals(1, manager.count("byStatus", LembasEntity.ACTIVE));
+        assertEquals(1, manager.count("byStatus", LembasEntity.ARCHIVED));
+        assertEquals(7, manager.sum("byStatus", LembasEntity.ARCHIVED), 0);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTest {
+
+    public static class Item extends LembasEntity {
+        public String name;
+
+        public Item() {
+        }
+
+        public Item(String keyName) {
+            super(keyName);
+        }
+    }
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private EntityManager<Item> manager;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+        manager = new EntityManager<>(Item.class);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    // a copy loaded from the store, as another request would hold it
+    private Item load(Item item) throws EntityNotFoundException {
+        Item copy = (Item) Utils.deserialize(Utils.serialize(manager.getEntity(item.objectKey)));
+        copy.entity = ds.get(item.getKey()).clone();
+        return copy;
+    }
+
+    @Test
+    public void writeReplacesOlderCachedVersion() throws EntityNotFoundException {
+        Item item = new Item("a");
+        item.name = "first";
+        manager.upsertEntity(item);
+        item.name = "second";
+        manager.upsertEntity(item);
+
+        assertEquals("second", manager.getEntity(item.objectKey).name);
+    }
+
+    @Test
+    public void staleWriterDoesNotLeaveHigherCachedVersion() throws EntityNotFoundException {
+        Item item = new Item("a");
+        item.name = "v1";
+        manager.upsertEntity(item);
+
+        Item a = load(item);
+        Item b = load(item);
+        b.name = "b1";
+        manager.upsertEntity(b);
+        b.name = "b2";
+        manager.upsertEntity(b);
+
+        // a wins the store with a lower version than the cached one
+        a.name = "a-stale";
+        manager.upsertEntity(a);
+
+        assertEquals("a-stale", ds.get(item.getKey()).getProperty("name"));
+        assertNull(manager.getEntityFromCache(item.objectKey));
+        assertEquals("a-stale", manager.getEntity(item.objectKey).name);
+    }
+}
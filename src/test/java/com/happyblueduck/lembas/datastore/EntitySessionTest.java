@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EntitySessionTest {
+
+    public static class Item extends LembasEntity {
+        public String name;
+
+        public Item() {
+        }
+
+        public Item(String keyName, String name) {
+            super(keyName);
+            this.name = name;
+        }
+    }
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private EntityManager<Item> manager;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+        manager = new EntityManager<>(Item.class);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void changesAfterUpsertAreWritten() throws EntityNotFoundException {
+        Item item = new Item("a", "before");
+        EntitySession session = new EntitySession();
+        session.upsert(manager, item);
+        item.name = "after";
+        session.commit();
+
+        assertEquals("after", ds.get(item.getKey()).getProperty("name"));
+        assertEquals("after", manager.getEntity(item.objectKey).name);
+    }
+
+    @Test
+    public void clearedSessionLeavesEntityUntouched() {
+        Item item = new Item("a", "name");
+        EntitySession session = new EntitySession();
+        session.upsert(manager, item);
+        session.clear();
+
+        assertEquals(0, item.getVersion());
+        assertTrue(session.isEmpty());
+    }
+
+    @Test
+    public void largeSessionIsWrittenInBatches() {
+        int size = EntitySession.BATCH_SIZE + 100;
+        EntitySession session = new EntitySession();
+        for ( int i = 0; i < size; i++){
+            session.upsert(manager, new Item("k" + i, "name"));
+        }
+        session.commit();
+        assertEquals(size, ds.prepare(manager.query()).countEntities(FetchOptions.Builder.withDefaults()));
+
+        for ( int i = 0; i < size; i++){
+            session.delete(manager, KeyFactory.createKey("Item", "k" + i));
+        }
+        session.commit();
+        assertEquals(0, ds.prepare(manager.query()).countEntities(FetchOptions.Builder.withDefaults()));
+    }
+}
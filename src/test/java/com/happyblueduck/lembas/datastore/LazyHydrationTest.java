@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LazyHydrationTest {
+
+    public static class Note extends LembasEntity {
+        public String title;
+        public String body;
+        public long views;
+
+        public Note() {
+        }
+    }
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private EntityManager<Note> manager;
+    private Key key;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+        manager = new EntityManager<>(Note.class);
+        manager.setLazyHydration(true);
+
+        Entity entity = new Entity("Note", "a");
+        entity.setProperty("title", "stored title");
+        entity.setProperty("body", "stored body");
+        entity.setProperty("views", 5L);
+        key = ds.put(entity);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private Note loadLazily() {
+        List<Note> notes = manager.queryEntities(manager.query(), CachePolicy.NONE);
+        assertEquals(1, notes.size());
+        Note note = notes.get(0);
+        assertFalse(note.isMaterialized("title"));
+        return note;
+    }
+
+    @Test
+    public void directAssignmentBeforeReadIsWritten() throws EntityNotFoundException {
+        Note note = loadLazily();
+        note.title = "new title";
+        note.views = 9;
+        manager.upsertEntity(note);
+
+        Entity stored = ds.get(key);
+        assertEquals("new title", stored.getProperty("title"));
+        assertEquals(9L, stored.getProperty("views"));
+        assertEquals("stored body", stored.getProperty("body"));
+    }
+
+    @Test
+    public void materializeKeepsAssignedValue() {
+        Note note = loadLazily();
+        note.title = "new title";
+        note.materializeAll();
+
+        assertEquals("new title", note.title);
+        assertEquals("stored body", note.body);
+        assertEquals(5, note.views);
+    }
+
+    @Test
+    public void updateWritesDirectAssignment() throws EntityNotFoundException {
+        manager.update(key, new Function<Note, Note>() {
+            @Override
+            public Note apply(Note current) {
+                current.body = "updated body";
+                return current;
+            }
+        });
+
+        Entity stored = ds.get(key);
+        assertEquals("updated body", stored.getProperty("body"));
+        assertEquals("stored title", stored.getProperty("title"));
+    }
+}
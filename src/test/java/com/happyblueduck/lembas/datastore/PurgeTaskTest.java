@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.dev.HighRepJobPolicy;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class PurgeTaskTest {
+
+    public static class Order extends LembasEntity {
+        public Date updated;
+
+        public Order() {
+        }
+    }
+
+    @Aggregate(name = "byStatus", groupBy = "_status", shards = 2)
+    public static class Ticket extends LembasEntity {
+        public Ticket() {
+        }
+
+        public Ticket(String keyName, int status) {
+            super(keyName);
+            this._status = status;
+        }
+    }
+
+    // applies writes at once unless switched off, to let queries see stale index entries
+    public static class SwitchablePolicy implements HighRepJobPolicy {
+        static volatile boolean apply = true;
+
+        @Override
+        public boolean shouldApplyNewJob(Key entityGroup) {
+            return apply;
+        }
+
+        @Override
+        public boolean shouldRollForwardExistingJob(Key entityGroup) {
+            return apply;
+        }
+    }
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setAlternateHighRepJobPolicyClass(SwitchablePolicy.class),
+            new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private EntityManager<Order> manager;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        SwitchablePolicy.apply = true;
+        ds = DatastoreServiceFactory.getDatastoreService();
+        manager = new EntityManager<>(Order.class);
+    }
+
+    @After
+    public void tearDown() {
+        SwitchablePolicy.apply = true;
+        helper.tearDown();
+    }
+
+    private Key put(String name, int status, long ageMillis) {
+        Entity entity = new Entity("Order", name);
+        entity.setProperty(PurgePolicy.STATUS_PROPERTY, (long) status);
+        entity.setProperty("updated", new Date(System.currentTimeMillis() - ageMillis));
+        return ds.put(entity);
+    }
+
+    private boolean exists(Key key) {
+        return !ds.get(Collections.singleton(key)).isEmpty();
+    }
+
+    @Test
+    public void newProgressRoundTrips() {
+        PurgeTask.Progress progress = PurgeTask.Progress.parse(null);
+        assertFalse(progress.isDone());
+        assertEquals("running:0:0::", progress.toString());
+        assertEquals(progress.toString(), PurgeTask.Progress.parse("").toString());
+    }
+
+    @Test
+    public void progressRoundTrips() {
+        String value = "running:1:250:1400000000000:E-ABAIICO2oMc35ob3Jz";
+        PurgeTask.Progress progress = PurgeTask.Progress.parse(value);
+
+        assertFalse(progress.isDone());
+        assertEquals(1, progress.statusIndex);
+        assertEquals(250, progress.getDeleted());
+        assertEquals(1400000000000L, progress.cutoff);
+        assertEquals("E-ABAIICO2oMc35ob3Jz", progress.cursor);
+        assertEquals(value, progress.toString());
+
+        assertTrue(PurgeTask.Progress.parse("done:2:300:1400000000000:").isDone());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void progressWithoutCutoffIsRejected() {
+        PurgeTask.Progress.parse("running:0:0:cursor");
+    }
+
+    @Test
+    public void cutoffIsFixedAtStart() {
+        for ( int i = 0; i < 3; i++){
+            put("o" + i, LembasEntity.ARCHIVED, 2 * DAY);
+        }
+        PurgePolicy policy = new PurgePolicy(LembasEntity.ARCHIVED).olderThan("updated", DAY).batchSize(1);
+        PurgeTask<Order> purge = new PurgeTask<>(manager, policy);
+
+        PurgeTask.Progress first = purge.runBatch(null);
+        assertTrue(first.cutoff > 0);
+
+        PurgeTask.Progress resumed = PurgeTask.Progress.parse(first.toString());
+        PurgeTask.Progress second = purge.runBatch(resumed);
+        assertEquals(first.cutoff, second.cutoff);
+        assertEquals(2, second.getDeleted());
+    }
+
+    @Test
+    public void purgesMatchingEntitiesOnly() {
+        Key archived = put("archived", LembasEntity.ARCHIVED, 2 * DAY);
+        Key recent = put("recent", LembasEntity.ARCHIVED, 0);
+        Key active = put("active", LembasEntity.ACTIVE, 2 * DAY);
+        Key inactive = put("inactive", LembasEntity.INACTIVE, 2 * DAY);
+
+        PurgePolicy policy = new PurgePolicy(LembasEntity.ARCHIVED, LembasEntity.INACTIVE)
+                .olderThan("updated", DAY).throttle(0);
+        PurgeTask.Progress progress = new PurgeTask<>(manager, policy).run(null, 10 * 1000);
+
+        assertTrue(progress.isDone());
+        assertEquals(2, progress.getDeleted());
+        assertFalse(exists(archived));
+        assertFalse(exists(inactive));
+        assertTrue(exists(recent));
+        assertTrue(exists(active));
+    }
+
+    @Test
+    public void staleCandidatesAreRechecked() {
+        Key key = put("restored", LembasEntity.ARCHIVED, 2 * DAY);
+
+        // restored after being archived, the index still lists it as archived
+        SwitchablePolicy.apply = false;
+        Entity restored = new Entity(KeyFactory.createKey("Order", "restored"));
+        restored.setProperty(PurgePolicy.STATUS_PROPERTY, (long) LembasEntity.ACTIVE);
+        restored.setProperty("updated", new Date());
+        ds.put(restored);
+        SwitchablePolicy.apply = true;
+
+        PurgePolicy policy = new PurgePolicy(LembasEntity.ARCHIVED).throttle(0);
+        PurgeTask.Progress progress = new PurgeTask<>(manager, policy).run(null, 10 * 1000);
+
+        assertEquals(0, progress.getDeleted());
+        assertTrue(exists(key));
+    }
+
+    @Test
+    public void aggregatesAreUpdatedWithTheDelete() {
+        EntityManager<Ticket> tickets = new EntityManager<>(Ticket.class);
+        tickets.upsertEntity(new Ticket("a", LembasEntity.ARCHIVED));
+        tickets.upsertEntity(new Ticket("b", LembasEntity.ARCHIVED));
+        tickets.upsertEntity(new Ticket("c", LembasEntity.ACTIVE));
+        assertEquals(2, tickets.count("byStatus", LembasEntity.ARCHIVED));
+
+        PurgePolicy policy = new PurgePolicy(LembasEntity.ARCHIVED).throttle(0);
+        PurgeTask.Progress progress = new PurgeTask<>(tickets, policy).run(null, 10 * 1000);
+
+        assertEquals(2, progress.getDeleted());
+        assertEquals(0, tickets.count("byStatus", LembasEntity.ARCHIVED));
+        assertEquals(1, tickets.count("byStatus", LembasEntity.ACTIVE));
+    }
+}
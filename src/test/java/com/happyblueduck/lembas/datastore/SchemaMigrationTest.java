@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SchemaMigrationTest {
+
+    @SchemaEvolution(
+            renamed = {@SchemaEvolution.Renamed(from = "title", to = "name")},
+            removed = {"legacyFlag"})
+    public static class Product extends LembasEntity {
+        public String name;
+
+        public Product() {
+        }
+    }
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig().setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+            new LocalMemcacheServiceTestConfig());
+
+    private DatastoreService ds;
+    private EntityManager<Product> manager;
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        ds = DatastoreServiceFactory.getDatastoreService();
+        manager = new EntityManager<>(Product.class);
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    private Key putOld(String name, Key parent, String title) {
+        Entity entity = new Entity("Product", name, parent);
+        entity.setProperty("title", title);
+        entity.setProperty("legacyFlag", true);
+        return ds.put(entity);
+    }
+
+    @Test
+    public void migratesEveryEntityOfTheKind() throws EntityNotFoundException {
+        Key catalog = KeyFactory.createKey("Catalog", "c");
+        Key grouped1 = putOld("a", catalog, "first");
+        Key grouped2 = putOld("b", catalog, "second");
+        Key root = putOld("c", null, "third");
+
+        SchemaMigration<Product> migration = new SchemaMigration<>(manager, 2);
+        assertNull(migration.migrate(null, 10));
+
+        assertEquals(3, migration.getScanned());
+        assertEquals(3, migration.getMigrated());
+        for ( Key key : new Key[]{grouped1, grouped2, root}){
+            Entity migrated = ds.get(key);
+            assertFalse(migrated.hasProperty("title"));
+            assertFalse(migrated.hasProperty("legacyFlag"));
+            assertNotNull(migrated.getProperty("name"));
+        }
+        assertEquals("second", ds.get(grouped2).getProperty("name"));
+    }
+
+    @Test
+    public void upToDateEntitiesAreNotWritten() {
+        Entity current = new Entity("Product", "a");
+        current.setProperty("name", "current");
+        ds.put(current);
+
+        SchemaMigration<Product> migration = new SchemaMigration<>(manager, 10);
+        migration.migrate(null, 1);
+
+        assertEquals(1, migration.getScanned());
+        assertEquals(0, migration.getMigrated());
+    }
+}
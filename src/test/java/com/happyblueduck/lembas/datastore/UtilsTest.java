@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.happyblueduck.lembas.datastore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UtilsTest {
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for ( int i = 0; i < times; i++){
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void gzipRoundTrip() {
+        String value = repeat("lembas \u00E7\u00F6\u011F \u2603 ", 5000);
+        byte[] compressed = Utils.gzip(value);
+
+        assertTrue(Utils.isGzip(compressed));
+        assertTrue(compressed.length < value.length());
+        assertEquals(value, Utils.gunzip(compressed));
+    }
+
+    @Test
+    public void gzipSizeReadsUncompressedBytes() {
+        String value = repeat("\u00E7a", 1000);
+        assertEquals(3000, Utils.gzipSize(Utils.gzip(value)));
+        assertEquals(0, Utils.gzipSize(Utils.gzip("")));
+    }
+
+    @Test
+    public void plainBytesAreNotGzip() {
+        assertFalse(Utils.isGzip(null));
+        assertFalse(Utils.isGzip("plain text that is long enough".getBytes(Utils.UTF8)));
+    }
+
+    @Test
+    public void utf8LengthCountsBytes() {
+        assertEquals(5, Utils.utf8Length("abcde"));
+        assertEquals(2, Utils.utf8Length("\u00E7"));
+        assertEquals(3, Utils.utf8Length("\u2603"));
+        assertEquals(4, Utils.utf8Length("\uD83D\uDE00"));
+        String mixed = "a\u00E7\u2603\uD83D\uDE00";
+        assertEquals(mixed.getBytes(Utils.UTF8).length, Utils.utf8Length(mixed));
+    }
+}